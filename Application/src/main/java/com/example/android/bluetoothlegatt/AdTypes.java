@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Locale;
+
+/**
+ * Names and layouts of the AD types, from the Bluetooth Assigned Numbers, section 2.3 "Common
+ * Data Types".
+ *
+ * Every table has an entry for each of the 256 possible type bytes, so a lookup is an array
+ * index that never allocates. Types without an assigned name are called "Unknown 0xNN".
+ */
+final class AdTypes {
+    private static final String[] NAMES = new String[256];
+    // Bytes per UUID in the service UUID lists, 0 for every other type.
+    private static final byte[] SERVICE_UUID_LENGTHS = new byte[256];
+    // Bytes of the UUID that starts service data, 0 for every other type.
+    private static final byte[] SERVICE_DATA_UUID_LENGTHS = new byte[256];
+
+    static {
+        NAMES[0x01] = "Flags";
+        NAMES[0x02] = "Incomplete List of 16-bit Service UUIDs";
+        NAMES[0x03] = "Complete List of 16-bit Service UUIDs";
+        NAMES[0x04] = "Incomplete List of 32-bit Service UUIDs";
+        NAMES[0x05] = "Complete List of 32-bit Service UUIDs";
+        NAMES[0x06] = "Incomplete List of 128-bit Service UUIDs";
+        NAMES[0x07] = "Complete List of 128-bit Service UUIDs";
+        NAMES[0x08] = "Shortened Local Name";
+        NAMES[0x09] = "Complete Local Name";
+        NAMES[0x0A] = "Tx Power Level";
+        NAMES[0x0D] = "Class of Device";
+        NAMES[0x0E] = "Simple Pairing Hash C-192";
+        NAMES[0x0F] = "Simple Pairing Randomizer R-192";
+        NAMES[0x10] = "Device ID";
+        NAMES[0x11] = "Security Manager Out of Band Flags";
+        NAMES[0x12] = "Peripheral Connection Interval Range";
+        NAMES[0x14] = "List of 16-bit Service Solicitation UUIDs";
+        NAMES[0x15] = "List of 128-bit Service Solicitation UUIDs";
+        NAMES[0x16] = "Service Data - 16-bit UUID";
+        NAMES[0x17] = "Public Target Address";
+        NAMES[0x18] = "Random Target Address";
+        NAMES[0x19] = "Appearance";
+        NAMES[0x1A] = "Advertising Interval";
+        NAMES[0x1B] = "LE Bluetooth Device Address";
+        NAMES[0x1C] = "LE Role";
+        NAMES[0x1D] = "Simple Pairing Hash C-256";
+        NAMES[0x1E] = "Simple Pairing Randomizer R-256";
+        NAMES[0x1F] = "List of 32-bit Service Solicitation UUIDs";
+        NAMES[0x20] = "Service Data - 32-bit UUID";
+        NAMES[0x21] = "Service Data - 128-bit UUID";
+        NAMES[0x22] = "LE Secure Connections Confirmation Value";
+        NAMES[0x23] = "LE Secure Connections Random Value";
+        NAMES[0x24] = "URI";
+        NAMES[0x25] = "Indoor Positioning";
+        NAMES[0x26] = "Transport Discovery Data";
+        NAMES[0x27] = "LE Supported Features";
+        NAMES[0x28] = "Channel Map Update Indication";
+        NAMES[0x29] = "PB-ADV";
+        NAMES[0x2A] = "Mesh Message";
+        NAMES[0x2B] = "Mesh Beacon";
+        NAMES[0x2C] = "BIGInfo";
+        NAMES[0x2D] = "Broadcast_Code";
+        NAMES[0x2E] = "Resolvable Set Identifier";
+        NAMES[0x2F] = "Advertising Interval - long";
+        NAMES[0x30] = "Broadcast_Name";
+        NAMES[0x31] = "Encrypted Advertising Data";
+        NAMES[0x32] = "Periodic Advertising Response Timing Information";
+        NAMES[0x34] = "Electronic Shelf Label";
+        NAMES[0x3D] = "3D Information Data";
+        NAMES[0xFF] = "Manufacturer Specific Data";
+        for (int type = 0; type < NAMES.length; type++) {
+            if (NAMES[type] == null) {
+                NAMES[type] = String.format(Locale.US, "Unknown 0x%02X", type);
+            }
+        }
+
+        SERVICE_UUID_LENGTHS[AdvertisementParser.TYPE_SERVICE_UUIDS_16_INCOMPLETE] = 2;
+        SERVICE_UUID_LENGTHS[AdvertisementParser.TYPE_SERVICE_UUIDS_16_COMPLETE] = 2;
+        SERVICE_UUID_LENGTHS[AdvertisementParser.TYPE_SERVICE_UUIDS_32_INCOMPLETE] = 4;
+        SERVICE_UUID_LENGTHS[AdvertisementParser.TYPE_SERVICE_UUIDS_32_COMPLETE] = 4;
+        SERVICE_UUID_LENGTHS[AdvertisementParser.TYPE_SERVICE_UUIDS_128_INCOMPLETE] = 16;
+        SERVICE_UUID_LENGTHS[AdvertisementParser.TYPE_SERVICE_UUIDS_128_COMPLETE] = 16;
+
+        SERVICE_DATA_UUID_LENGTHS[AdvertisementParser.TYPE_SERVICE_DATA_16] = 2;
+        SERVICE_DATA_UUID_LENGTHS[AdvertisementParser.TYPE_SERVICE_DATA_32] = 4;
+        SERVICE_DATA_UUID_LENGTHS[AdvertisementParser.TYPE_SERVICE_DATA_128] = 16;
+    }
+
+    private AdTypes() {
+    }
+
+    /**
+     * Returns the assigned name of an AD type. Only the low 8 bits of the type are used.
+     */
+    public static String name(int type) {
+        return NAMES[type & 0xFF];
+    }
+
+    /**
+     * Bytes per UUID if the type is a complete or incomplete service UUID list, otherwise 0.
+     */
+    public static int serviceUuidLength(int type) {
+        return SERVICE_UUID_LENGTHS[type & 0xFF];
+    }
+
+    /**
+     * Bytes of the service UUID at the start of the data if the type is service data,
+     * otherwise 0.
+     */
+    public static int serviceDataUuidLength(int type) {
+        return SERVICE_DATA_UUID_LENGTHS[type & 0xFF];
+    }
+}
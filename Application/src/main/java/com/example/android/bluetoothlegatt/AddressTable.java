@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Arrays;
+
+/**
+ * Maps packed addresses to dense slot numbers, see {@link DeviceFormatter#packAddress}.
+ *
+ * An open addressing hash table with linear probing over a plain long[], so a lookup neither
+ * boxes its key nor follows a pointer. Slots are handed out from 0 up and reused once freed,
+ * so they stay below the largest number of addresses held at once and can index parallel
+ * arrays of per-device state.
+ */
+class AddressTable {
+    // Packed addresses only use the low 48 bits, so no address is ever negative.
+    private static final long EMPTY = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private int[] slots;
+    private int mask;
+    private int size;
+    // Freed slots, reused before new ones are handed out.
+    private int[] freeSlots = new int[MIN_CAPACITY];
+    private int freeCount;
+    private int slotLimit;
+
+    public AddressTable() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize Number of addresses to make room for up front.
+     */
+    public AddressTable(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        // Kept at most half full, probe sequences stay short.
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Returns the slot of an address, or -1 if it isn't in the table.
+     */
+    public int get(long address) {
+        int i = index(address);
+        long key;
+        while ((key = keys[i]) != EMPTY) {
+            if (key == address) {
+                return slots[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot of an address, adding it with a free slot if it isn't in the table.
+     */
+    public int add(long address) {
+        int i = index(address);
+        long key;
+        while ((key = keys[i]) != EMPTY) {
+            if (key == address) {
+                return slots[i];
+            }
+            i = (i + 1) & mask;
+        }
+        int slot = freeCount > 0 ? freeSlots[--freeCount] : slotLimit++;
+        keys[i] = address;
+        slots[i] = slot;
+        if (++size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        return slot;
+    }
+
+    /**
+     * Removes an address and frees its slot.
+     *
+     * @return The slot the address had, or -1 if it wasn't in the table.
+     */
+    public int remove(long address) {
+        int i = index(address);
+        long key;
+        while ((key = keys[i]) != address) {
+            if (key == EMPTY) {
+                return -1;
+            }
+            i = (i + 1) & mask;
+        }
+        int slot = slots[i];
+        // Shift the rest of the probe sequence back instead of leaving a tombstone.
+        int gap = i;
+        for (int j = (i + 1) & mask; (key = keys[j]) != EMPTY; j = (j + 1) & mask) {
+            int home = index(key);
+            // Move the key into the gap unless its home lies cyclically in (gap, j].
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = key;
+                slots[gap] = slots[j];
+                gap = j;
+            }
+        }
+        keys[gap] = EMPTY;
+        size--;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+        return slot;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns one more than the highest slot handed out so far. Arrays indexed by slot need
+     * to be at least this long.
+     */
+    public int getSlotLimit() {
+        return slotLimit;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        freeCount = 0;
+        slotLimit = 0;
+    }
+
+    private int index(long address) {
+        // Fibonacci hashing, the top bits of the product depend on every bit of the address.
+        return (int) ((address * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        slots = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldSlots = slots;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != EMPTY) {
+                int j = index(key);
+                while (keys[j] != EMPTY) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = key;
+                slots[j] = oldSlots[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.nio.charset.Charset;
+
+/**
+ * Reads the AD structures of a raw advertisement in place.
+ *
+ * {@link #parse} walks the bytes once and records the type, offset and length of each
+ * structure; nothing is copied. The accessors then read values straight out of the bytes, so a
+ * single parser can be reused for every packet without allocating. Only {@link #getLocalName}
+ * creates an object, and only when it is called.
+ */
+class AdvertisementParser {
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_SERVICE_UUIDS_16_INCOMPLETE = 0x02;
+    public static final int TYPE_SERVICE_UUIDS_16_COMPLETE = 0x03;
+    public static final int TYPE_SERVICE_UUIDS_32_INCOMPLETE = 0x04;
+    public static final int TYPE_SERVICE_UUIDS_32_COMPLETE = 0x05;
+    public static final int TYPE_SERVICE_UUIDS_128_INCOMPLETE = 0x06;
+    public static final int TYPE_SERVICE_UUIDS_128_COMPLETE = 0x07;
+    public static final int TYPE_LOCAL_NAME_SHORT = 0x08;
+    public static final int TYPE_LOCAL_NAME_COMPLETE = 0x09;
+    public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int TYPE_SERVICE_DATA_16 = 0x16;
+    public static final int TYPE_SERVICE_DATA_32 = 0x20;
+    public static final int TYPE_SERVICE_DATA_128 = 0x21;
+    public static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    /**
+     * Returned by {@link #getTxPowerLevel} when the advertisement has no TX power level, same as
+     * ScanRecord.
+     */
+    public static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+
+    // Halves of the Bluetooth base UUID 00000000-0000-1000-8000-00805F9B34FB, which 16 and
+    // 32-bit UUIDs are short for. The short UUID goes in the top 32 bits of the first half.
+    public static final long BASE_UUID_MSB = 0x0000000000001000L;
+    public static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    // Extended advertising data is at most 1650 bytes and the smallest structure, a length and
+    // a type with no data, takes two of them, so it can't hold more structures.
+    private static final int MAX_STRUCTURES = 1650 / 2;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] data;
+    private int count;
+    private final int[] types = new int[MAX_STRUCTURES];
+    private final int[] offsets = new int[MAX_STRUCTURES];
+    private final int[] lengths = new int[MAX_STRUCTURES];
+
+    /**
+     * Walks the AD structures of a raw advertisement, e.g. ScanRecord.getBytes(). The bytes are
+     * not copied and must not change while the parser is used. A truncated structure ends the
+     * walk, as does a zero length, which starts the padding of a legacy advertisement.
+     */
+    public void parse(byte[] bytes) {
+        data = bytes;
+        count = 0;
+        if (bytes == null) {
+            return;
+        }
+        int position = 0;
+        while (position < bytes.length && count < MAX_STRUCTURES) {
+            int length = bytes[position] & 0xFF;
+            if (length == 0 || position + 1 + length > bytes.length) {
+                break;
+            }
+            types[count] = bytes[position + 1] & 0xFF;
+            offsets[count] = position + 2;
+            lengths[count] = length - 1;
+            count++;
+            position += 1 + length;
+        }
+    }
+
+    public byte[] getBytes() {
+        return data;
+    }
+
+    /**
+     * Number of AD structures found.
+     */
+    public int size() {
+        return count;
+    }
+
+    public int type(int index) {
+        return types[index];
+    }
+
+    /**
+     * Assigned name of the type of this structure, see {@link AdTypes#name}.
+     */
+    public String typeName(int index) {
+        return AdTypes.name(types[index]);
+    }
+
+    /**
+     * Offset of the data of this structure in the bytes, after its length and type.
+     */
+    public int offset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Length of the data of this structure, not counting its type.
+     */
+    public int length(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * Returns the index of the first structure of this type, or -1 if there is none.
+     */
+    public int indexOf(int type) {
+        return indexOf(type, 0);
+    }
+
+    /**
+     * Returns the index of the first structure of this type at or after {@code from}, or -1.
+     */
+    public int indexOf(int type, int from) {
+        for (int i = from; i < count; i++) {
+            if (types[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the advertising flags, or -1 if there are none, same as ScanRecord.
+     */
+    public int getAdvertiseFlags() {
+        int index = indexOf(TYPE_FLAGS);
+        if (index < 0 || lengths[index] < 1) {
+            return -1;
+        }
+        return data[offsets[index]] & 0xFF;
+    }
+
+    /**
+     * Returns the TX power level in dBm, or {@link #TX_POWER_UNKNOWN}.
+     */
+    public int getTxPowerLevel() {
+        int index = indexOf(TYPE_TX_POWER_LEVEL);
+        if (index < 0 || lengths[index] < 1) {
+            return TX_POWER_UNKNOWN;
+        }
+        return data[offsets[index]];
+    }
+
+    /**
+     * Returns the company identifier of a manufacturer specific data structure.
+     */
+    public int getManufacturerId(int index) {
+        return uint16(offsets[index]);
+    }
+
+    /**
+     * Offset of the manufacturer data of a manufacturer specific data structure, after the
+     * company identifier.
+     */
+    public int getManufacturerDataOffset(int index) {
+        return offsets[index] + 2;
+    }
+
+    public int getManufacturerDataLength(int index) {
+        return Math.max(lengths[index] - 2, 0);
+    }
+
+    /**
+     * Returns the index of the next manufacturer specific data structure with room for a
+     * company identifier at or after {@code from}, or -1.
+     */
+    public int nextManufacturerData(int from) {
+        for (int i = from; i < count; i++) {
+            if (types[i] == TYPE_MANUFACTURER_SPECIFIC_DATA && lengths[i] >= 2) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the company identifier of the first manufacturer specific data structure, or -1.
+     */
+    public int getFirstManufacturerId() {
+        int index = nextManufacturerData(0);
+        return index >= 0 ? getManufacturerId(index) : -1;
+    }
+
+    /**
+     * Returns the index of the next service data structure for a 16-bit service UUID at or
+     * after {@code from}, or -1. The UUID is the first two bytes of its data.
+     */
+    public int nextServiceData16(int from) {
+        for (int i = from; i < count; i++) {
+            if (types[i] == TYPE_SERVICE_DATA_16 && lengths[i] >= 2) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the first service data structure for this service UUID, in any of
+     * its 16, 32 or 128-bit forms, or -1.
+     */
+    public int indexOfServiceData(long uuidMsb, long uuidLsb) {
+        for (int i = 0; i < count; i++) {
+            int uuidLength = getServiceDataUuidLength(i);
+            if (uuidLength == 0 || lengths[i] < uuidLength) {
+                continue;
+            }
+            long msb;
+            long lsb;
+            if (uuidLength == 16) {
+                msb = int64(offsets[i] + 8);
+                lsb = int64(offsets[i]);
+            } else {
+                long shortUuid = uuidLength == 2 ? uint16(offsets[i]) : uint32(offsets[i]);
+                msb = BASE_UUID_MSB | shortUuid << 32;
+                lsb = BASE_UUID_LSB;
+            }
+            if (msb == uuidMsb && lsb == uuidLsb) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Length of the service UUID at the start of a service data structure, 0 if the structure
+     * isn't service data.
+     */
+    public int getServiceDataUuidLength(int index) {
+        return AdTypes.serviceDataUuidLength(types[index]);
+    }
+
+    /**
+     * Returns whether this service UUID is in any of the service UUID lists.
+     */
+    public boolean hasServiceUuid(long uuidMsb, long uuidLsb) {
+        if (uuidLsb == BASE_UUID_LSB && (uuidMsb & 0xFFFFFFFFL) == BASE_UUID_MSB) {
+            long shortUuid = uuidMsb >>> 32;
+            for (int i = 0; i < getServiceUuid16Count(); i++) {
+                if (getServiceUuid16(i) == shortUuid) {
+                    return true;
+                }
+            }
+            for (int i = 0; i < getServiceUuid32Count(); i++) {
+                if (getServiceUuid32(i) == shortUuid) {
+                    return true;
+                }
+            }
+        }
+        for (int i = 0; i < getServiceUuid128Count(); i++) {
+            if (getServiceUuid128Msb(i) == uuidMsb && getServiceUuid128Lsb(i) == uuidLsb) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Number of 16-bit service UUIDs over all complete and incomplete lists.
+     */
+    public int getServiceUuid16Count() {
+        return countUuids(2);
+    }
+
+    public int getServiceUuid16(int n) {
+        return uint16(uuidOffset(2, n));
+    }
+
+    /**
+     * Number of 32-bit service UUIDs over all complete and incomplete lists.
+     */
+    public int getServiceUuid32Count() {
+        return countUuids(4);
+    }
+
+    public long getServiceUuid32(int n) {
+        return uint32(uuidOffset(4, n));
+    }
+
+    /**
+     * Number of 128-bit service UUIDs over all complete and incomplete lists.
+     */
+    public int getServiceUuid128Count() {
+        return countUuids(16);
+    }
+
+    /**
+     * Returns the most significant half of a 128-bit service UUID, as in
+     * UUID.getMostSignificantBits().
+     */
+    public long getServiceUuid128Msb(int n) {
+        return int64(uuidOffset(16, n) + 8);
+    }
+
+    /**
+     * Returns the least significant half of a 128-bit service UUID, as in
+     * UUID.getLeastSignificantBits().
+     */
+    public long getServiceUuid128Lsb(int n) {
+        return int64(uuidOffset(16, n));
+    }
+
+    /**
+     * Returns the index of the local name structure, complete if there is one, otherwise
+     * shortened, or -1.
+     */
+    public int getLocalNameIndex() {
+        int index = indexOf(TYPE_LOCAL_NAME_COMPLETE);
+        return index >= 0 ? index : indexOf(TYPE_LOCAL_NAME_SHORT);
+    }
+
+    /**
+     * Decodes the local name, or returns null if there is none.
+     */
+    public String getLocalName() {
+        int index = getLocalNameIndex();
+        if (index < 0) {
+            return null;
+        }
+        return new String(data, offsets[index], lengths[index], UTF_8);
+    }
+
+    /**
+     * Reads an unsigned little-endian 16-bit value.
+     */
+    public int uint16(int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    /**
+     * Reads an unsigned little-endian 32-bit value.
+     */
+    public long uint32(int offset) {
+        return (uint16(offset) | (long) uint16(offset + 2) << 16) & 0xFFFFFFFFL;
+    }
+
+    private long int64(int offset) {
+        return uint32(offset) | uint32(offset + 4) << 32;
+    }
+
+    // Service UUID lists, complete or not, with UUIDs of this size.
+    private int countUuids(int size) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (AdTypes.serviceUuidLength(types[i]) == size) {
+                n += lengths[i] / size;
+            }
+        }
+        return n;
+    }
+
+    private int uuidOffset(int size, int n) {
+        for (int i = 0; i < count; i++) {
+            if (AdTypes.serviceUuidLength(types[i]) == size) {
+                int inStructure = lengths[i] / size;
+                if (n < inStructure) {
+                    return offsets[i] + n * size;
+                }
+                n -= inStructure;
+            }
+        }
+        throw new IndexOutOfBoundsException("No service UUID " + n);
+    }
+}
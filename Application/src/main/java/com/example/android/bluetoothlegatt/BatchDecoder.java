@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes the records of a batch on a bounded ForkJoinPool.
+ *
+ * Decoding a record, parsing its AD structures, looking up its company and running the payload
+ * decoders, depends on nothing but the record, so large batches are split into shares that are
+ * decoded in parallel, and the calling thread carries on once all of them are done. Batches too
+ * small to be worth forking are decoded on the calling thread.
+ *
+ * Every thread decodes with a parser and formatter of its own. The {@link Decoder} must only
+ * write to the record it is given, or to state that is safe to share.
+ */
+class BatchDecoder {
+    // Smaller batches are decoded on the calling thread, forking would cost more than it saves.
+    static final int MIN_PARALLEL_BATCH = 256;
+    // Fewest records decoded by one task.
+    static final int MIN_SHARE = 16;
+    // Shares per pool thread, so threads that finish early can take over work.
+    private static final int SHARES_PER_THREAD = 4;
+
+    interface Decoder {
+        /**
+         * Decodes the record at an index of the batch. Called on several threads at once.
+         */
+        void decode(int index, AdvertisementParser parser, ManufacturerFormatter formatter);
+    }
+
+    // Null if decoding is not split.
+    private final ForkJoinPool pool;
+    private final int parallelism;
+    private final ThreadLocal<AdvertisementParser> parsers =
+            new ThreadLocal<AdvertisementParser>() {
+                @Override
+                protected AdvertisementParser initialValue() {
+                    return new AdvertisementParser();
+                }
+            };
+    private final ThreadLocal<ManufacturerFormatter> formatters;
+
+    /**
+     * @param parallelism Most threads decoding at once, 1 to decode everything on the calling
+     *                    thread.
+     */
+    public BatchDecoder(int parallelism, final ManufacturerDecoders decoders) {
+        this.parallelism = parallelism;
+        pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        formatters = new ThreadLocal<ManufacturerFormatter>() {
+            @Override
+            protected ManufacturerFormatter initialValue() {
+                return new ManufacturerFormatter(decoders);
+            }
+        };
+    }
+
+    /**
+     * Decodes records 0 to count - 1 and returns once all of them are done.
+     */
+    public void decode(int count, Decoder decoder) {
+        if (pool == null || count < MIN_PARALLEL_BATCH) {
+            decodeRange(decoder, 0, count);
+            return;
+        }
+        int share = Math.max(MIN_SHARE, count / (parallelism * SHARES_PER_THREAD));
+        pool.invoke(new DecodeTask(decoder, 0, count, share));
+    }
+
+    /**
+     * Decodes on a single thread, the same as for a small batch.
+     */
+    void decodeRange(Decoder decoder, int from, int to) {
+        AdvertisementParser parser = parsers.get();
+        ManufacturerFormatter formatter = formatters.get();
+        for (int i = from; i < to; i++) {
+            decoder.decode(i, parser, formatter);
+        }
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private class DecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Decoder decoder;
+        private final int from;
+        private final int to;
+        private final int share;
+
+        DecodeTask(Decoder decoder, int from, int to, int share) {
+            this.decoder = decoder;
+            this.from = from;
+            this.to = to;
+            this.share = share;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= share) {
+                decodeRange(decoder, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new DecodeTask(decoder, from, middle, share),
+                    new DecodeTask(decoder, middle, to, share));
+        }
+    }
+}
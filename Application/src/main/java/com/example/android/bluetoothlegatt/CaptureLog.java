@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records every scan result to an append-only binary log for replay.
+ *
+ * A file starts with {@link #MAGIC} and {@link #VERSION}, followed by length-prefixed records:
+ * <pre>
+ * int  length           bytes after this field
+ * long timestampNanos   elapsed realtime of the scan result
+ * long address          see DeviceFormatter.packAddress
+ * byte rssi
+ * byte flags            FLAG_LEGACY
+ * byte primaryPhy
+ * byte secondaryPhy
+ * byte[] scanRecord     the rest of the record
+ * </pre>
+ * A file that was closed properly ends with an index footer: one (offset, timestamp) entry for
+ * every {@link #INDEX_INTERVAL} records, the entry count, the footer offset and
+ * {@link #FOOTER_MAGIC}. Everything is little endian.
+ *
+ * Records are copied into one of a few preallocated direct buffers and written in batches by a
+ * background thread, so {@link #append} never does I/O. If the writer falls so far behind that
+ * no buffer is free, records are dropped and counted instead of blocking the caller. Files are
+ * rotated once they reach the maximum size, on a batch boundary, so a file can overshoot it by
+ * up to one buffer. If writing fails the writer stops, the {@link ErrorListener} is told and
+ * everything appended afterwards is dropped.
+ */
+class CaptureLog {
+    public static final int MAGIC = 0x4C435442; // "BTCL"
+    public static final int FOOTER_MAGIC = 0x58444E49; // "INDX"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    // Record fields after the length prefix, before the scan record bytes.
+    public static final int RECORD_HEADER_SIZE = 8 + 8 + 4;
+    public static final int INDEX_INTERVAL = 256;
+    public static final String SUFFIX = ".btcap";
+
+    public static final int FLAG_LEGACY = 1;
+
+    private static final int BUFFER_COUNT = 4;
+
+    interface ErrorListener {
+        /**
+         * Called on the writer thread when it stops because a write failed.
+         */
+        void onError(IOException e);
+    }
+
+    private final File directory;
+    private final String prefix;
+    private final long maxFileBytes;
+    private final long flushIntervalNanos;
+
+    private final ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    private final ArrayBlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+    // An empty buffer queued by close() to stop the writer.
+    private final ByteBuffer endOfLog = ByteBuffer.allocate(0);
+    private final Thread writerThread;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private volatile boolean failed;
+    private volatile ErrorListener errorListener;
+
+    // Guarded by this.
+    private ByteBuffer current;
+    // System.nanoTime() of the first record in the current buffer.
+    private long currentStartNanos;
+    private boolean closed;
+
+    // Only touched by the writer thread.
+    private FileChannel channel;
+    private int fileIndex;
+    private long recordCount;
+    private long[] indexOffsets = new long[64];
+    private long[] indexNanos = new long[64];
+    private int indexSize;
+    private final ByteBuffer header =
+            ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Starts the writer thread. Files are only created once the first batch is written.
+     *
+     * @param directory          Where the files go, created if needed.
+     * @param prefix             Files are named prefix-N.btcap, N counting up from 0.
+     * @param bufferBytes        Size of each of the preallocated buffers.
+     * @param maxFileBytes       Size after which a new file is started.
+     * @param flushIntervalNanos Longest time a record waits in a buffer before it is written,
+     *                           must be positive.
+     */
+    public CaptureLog(File directory, String prefix, int bufferBytes, long maxFileBytes,
+            long flushIntervalNanos) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.maxFileBytes = maxFileBytes;
+        this.flushIntervalNanos = flushIntervalNanos;
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            free.add(ByteBuffer.allocateDirect(bufferBytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        current = free.poll();
+        writerThread = new Thread(writer, "CaptureLog");
+        writerThread.setPriority(Thread.MIN_PRIORITY);
+        writerThread.start();
+    }
+
+    /**
+     * Copies a scan result into the current buffer. The buffer is handed to the writer once it
+     * is full. The writer takes it over itself once its first record has waited the flush
+     * interval, even if nothing else is appended.
+     *
+     * @return False if the record was dropped because no buffer was free, or the log is closed
+     * or has failed.
+     */
+    public synchronized boolean append(long timestampNanos, long address, int rssi, int flags, int primaryPhy,
+            int secondaryPhy, byte[] scanRecord, int offset, int length) {
+        if (closed || failed) {
+            return false;
+        }
+        int recordSize = 4 + RECORD_HEADER_SIZE + length;
+        if (current != null && current.remaining() < recordSize) {
+            submit();
+        }
+        if (current == null) {
+            current = free.poll();
+            if (current == null || current.remaining() < recordSize) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        if (current.position() == 0) {
+            currentStartNanos = System.nanoTime();
+        }
+        current.putInt(RECORD_HEADER_SIZE + length)
+                .putLong(timestampNanos)
+                .putLong(address)
+                .put((byte) rssi)
+                .put((byte) flags)
+                .put((byte) primaryPhy)
+                .put((byte) secondaryPhy)
+                .put(scanRecord, offset, length);
+        return true;
+    }
+
+    /**
+     * Hands the current buffer to the writer, even if it isn't full.
+     */
+    public synchronized void flush() {
+        if (current != null && current.position() > 0) {
+            submit();
+        }
+    }
+
+    /**
+     * Writes out everything appended so far, finishes the current file and stops the writer.
+     */
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            flush();
+            closed = true;
+            full.put(endOfLog);
+        }
+        writerThread.join();
+    }
+
+    public void setErrorListener(ErrorListener errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    /**
+     * True once the writer has stopped because a write failed.
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Records dropped because the writer fell behind.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Bytes written to files so far.
+     */
+    public long getWrittenBytes() {
+        return written.get();
+    }
+
+    private void submit() {
+        current.flip();
+        full.add(current);
+        current = null;
+    }
+
+    /**
+     * Hands the current buffer to the writer if its first record has waited the flush interval.
+     *
+     * @return How long the writer can wait for a full buffer before checking again.
+     */
+    private synchronized long submitIfStale() {
+        if (current == null || current.position() == 0) {
+            return flushIntervalNanos;
+        }
+        long waitedNanos = System.nanoTime() - currentStartNanos;
+        if (waitedNanos < flushIntervalNanos) {
+            return flushIntervalNanos - waitedNanos;
+        }
+        submit();
+        return flushIntervalNanos;
+    }
+
+    private final Runnable writer = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    ByteBuffer buffer = full.poll(submitIfStale(), TimeUnit.NANOSECONDS);
+                    if (buffer == null) {
+                        continue;
+                    }
+                    if (buffer == endOfLog) {
+                        break;
+                    }
+                    write(buffer);
+                    buffer.clear();
+                    free.add(buffer);
+                }
+                finishFile();
+            } catch (IOException e) {
+                failed = true;
+                closeQuietly();
+                ErrorListener listener = errorListener;
+                if (listener != null) {
+                    listener.onError(e);
+                }
+            } catch (InterruptedException e) {
+                failed = true;
+                closeQuietly();
+            }
+        }
+    };
+
+    private void closeQuietly() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        if (channel != null && channel.position() + buffer.remaining() > maxFileBytes) {
+            finishFile();
+        }
+        if (channel == null) {
+            openFile();
+        }
+        // Note where the indexed records start before the buffer is consumed.
+        long position = channel.position();
+        for (int i = 0; i < buffer.limit(); i += 4 + buffer.getInt(i)) {
+            if (recordCount++ % INDEX_INTERVAL == 0) {
+                addIndexEntry(position + i, buffer.getLong(i + 4));
+            }
+        }
+        int bytes = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        written.addAndGet(bytes);
+    }
+
+    private void openFile() throws IOException {
+        directory.mkdirs();
+        File file = new File(directory,
+                String.format(Locale.US, "%s-%d%s", prefix, fileIndex++, SUFFIX));
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+        header.clear();
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        channel.write(header);
+        recordCount = 0;
+        indexSize = 0;
+    }
+
+    private void addIndexEntry(long offset, long timestampNanos) {
+        if (indexSize == indexOffsets.length) {
+            indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+            indexNanos = Arrays.copyOf(indexNanos, indexSize * 2);
+        }
+        indexOffsets[indexSize] = offset;
+        indexNanos[indexSize] = timestampNanos;
+        indexSize++;
+    }
+
+    private void finishFile() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        long footerOffset = channel.position();
+        ByteBuffer footer = ByteBuffer.allocate(indexSize * 16 + 4 + 8 + 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < indexSize; i++) {
+            footer.putLong(indexOffsets[i]).putLong(indexNanos[i]);
+        }
+        footer.putInt(indexSize).putLong(footerOffset).putInt(FOOTER_MAGIC).flip();
+        while (footer.hasRemaining()) {
+            channel.write(footer);
+        }
+        channel.close();
+        channel = null;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads one file written by {@link CaptureLog}, record by record, in place.
+ *
+ * The reader is a cursor: {@link #next} moves to the following record and the getters describe
+ * the record it is on. A file without a footer, e.g. because the app was killed, is read up to
+ * its last complete record.
+ */
+class CaptureLogReader {
+    private final MappedByteBuffer buffer;
+    // Where the records end, the footer offset or the end of the file.
+    private final int end;
+    private final long[] indexOffsets;
+    private final long[] indexNanos;
+
+    private int position = -1;
+    private int next = CaptureLog.HEADER_SIZE;
+
+    /**
+     * @throws IOException If the file can't be read or isn't a capture log.
+     */
+    public CaptureLogReader(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid once the file is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int size = buffer.limit();
+        if (size < CaptureLog.HEADER_SIZE || buffer.getInt(0) != CaptureLog.MAGIC) {
+            throw new IOException("Not a capture log: " + file);
+        }
+        if (buffer.getInt(4) != CaptureLog.VERSION) {
+            throw new IOException("Unsupported capture log version " + buffer.getInt(4));
+        }
+        if (size >= CaptureLog.HEADER_SIZE + 16
+                && buffer.getInt(size - 4) == CaptureLog.FOOTER_MAGIC) {
+            end = (int) buffer.getLong(size - 12);
+            int count = buffer.getInt(size - 16);
+            indexOffsets = new long[count];
+            indexNanos = new long[count];
+            for (int i = 0; i < count; i++) {
+                indexOffsets[i] = buffer.getLong(end + i * 16);
+                indexNanos[i] = buffer.getLong(end + i * 16 + 8);
+            }
+        } else {
+            end = size;
+            indexOffsets = new long[0];
+            indexNanos = new long[0];
+        }
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return False if there are no more complete records.
+     */
+    public boolean next() {
+        if (next + 4 > end) {
+            return false;
+        }
+        int length = buffer.getInt(next);
+        if (length < CaptureLog.RECORD_HEADER_SIZE || next + 4 + length > end) {
+            return false;
+        }
+        position = next;
+        next += 4 + length;
+        return true;
+    }
+
+    /**
+     * Positions the cursor so that {@link #next} returns the indexed record closest before the
+     * given time, or the first record if the file has no index.
+     */
+    public void seek(long timestampNanos) {
+        next = CaptureLog.HEADER_SIZE;
+        position = -1;
+        int low = 0;
+        int high = indexNanos.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (indexNanos[mid] <= timestampNanos) {
+                next = (int) indexOffsets[mid];
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the file ended with a footer.
+     */
+    public boolean hasIndex() {
+        return end != buffer.limit();
+    }
+
+    public long getTimestampNanos() {
+        return buffer.getLong(position + 4);
+    }
+
+    public long getAddress() {
+        return buffer.getLong(position + 12);
+    }
+
+    public int getRssi() {
+        return buffer.get(position + 20);
+    }
+
+    public int getFlags() {
+        return buffer.get(position + 21) & 0xFF;
+    }
+
+    public int getPrimaryPhy() {
+        return buffer.get(position + 22) & 0xFF;
+    }
+
+    public int getSecondaryPhy() {
+        return buffer.get(position + 23) & 0xFF;
+    }
+
+    public int getScanRecordLength() {
+        return buffer.getInt(position) - CaptureLog.RECORD_HEADER_SIZE;
+    }
+
+    /**
+     * Copies the scan record bytes of the current record.
+     *
+     * @return The number of bytes copied.
+     */
+    public int getScanRecord(byte[] dst) {
+        int length = Math.min(getScanRecordLength(), dst.length);
+        for (int i = 0; i < length; i++) {
+            dst[i] = buffer.get(position + 4 + CaptureLog.RECORD_HEADER_SIZE + i);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Bluetooth SIG company names, looked up by their 16-bit company identifier.
+ *
+ * The table is compiled from the company identifier CSV at build time (see the
+ * compileCompanyIdentifiers task) into this layout, all integers big-endian:
+ * <pre>
+ * int     MAGIC
+ * int     count, one more than the highest company identifier
+ * int[]   count + 1 offsets into the names; the name of identifier i runs from offset i
+ *         to offset i + 1, and is missing if both are equal
+ * byte[]  the UTF-8 encoded names
+ * </pre>
+ * Names are only decoded when they are first looked up.
+ */
+class CompanyIdentifiers {
+    public static final String ASSET = "company_identifiers.bin";
+    public static final int MAGIC = 0x42544349; // "BTCI"
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int HEADER_SIZE = 8;
+
+    private final ByteBuffer data;
+    private final int count;
+    private final int namesStart;
+    private final String[] names;
+
+    public CompanyIdentifiers(ByteBuffer data) throws IOException {
+        if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+            throw new IOException("Not a company identifier table");
+        }
+        this.data = data;
+        count = data.getInt(4);
+        namesStart = HEADER_SIZE + (count + 1) * 4;
+        if (count < 0 || namesStart > data.capacity()) {
+            throw new IOException("Truncated company identifier table");
+        }
+        names = new String[count];
+    }
+
+    /**
+     * Maps a compiled table from a file, e.g. an uncompressed asset inside the APK.
+     */
+    public static CompanyIdentifiers map(FileChannel channel, long offset, long length)
+            throws IOException {
+        return new CompanyIdentifiers(channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+    }
+
+    /**
+     * Returns the company name for this identifier, or null if it is not assigned.
+     */
+    public String get(int companyId) {
+        if (companyId < 0 || companyId >= count) {
+            return null;
+        }
+        String name = names[companyId];
+        if (name == null) {
+            int start = data.getInt(HEADER_SIZE + companyId * 4);
+            int end = data.getInt(HEADER_SIZE + companyId * 4 + 4);
+            if (start == end) {
+                return null;
+            }
+            byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = data.get(namesStart + start + i);
+            }
+            name = new String(bytes, UTF_8);
+            names[companyId] = name;
+        }
+        return name;
+    }
+
+    /**
+     * One more than the highest company identifier in the table.
+     */
+    public int size() {
+        return count;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Builds the text shown for a scanned device, straight from the numeric values.
+ */
+class DeviceFormatter {
+    public static final int ADDRESS_PUBLIC = 0;
+    public static final int ADDRESS_RANDOM_STATIC = 1;
+    public static final int ADDRESS_RESOLVABLE_PRIVATE = 2;
+    public static final int ADDRESS_NON_RESOLVABLE_PRIVATE = 3;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private DeviceFormatter() {
+    }
+
+    /**
+     * Formats bytes as upper case hex digits, two per byte.
+     */
+    public static String hex(byte[] bytes, int offset, int length) {
+        char[] hexChars = new char[length * 2];
+        for (int j = 0; j < length; j++) {
+            int v = bytes[offset + j] & 0xFF;
+            hexChars[j * 2] = HEX_DIGITS[v >>> 4];
+            hexChars[j * 2 + 1] = HEX_DIGITS[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    /**
+     * Packs an address formatted as "XX:XX:XX:XX:XX:XX" into the low 48 bits of a long, first
+     * octet most significant. Addresses are parsed once, when a result comes in, and handled
+     * packed from then on: packed addresses hash, compare and sort like the strings did.
+     */
+    public static long packAddress(String address) {
+        long packed = 0;
+        for (int i = 0; i < 6; i++) {
+            packed = packed << 8 | Character.digit(address.charAt(i * 3), 16) << 4
+                    | Character.digit(address.charAt(i * 3 + 1), 16);
+        }
+        return packed;
+    }
+
+    /**
+     * Formats an address packed by {@link #packAddress} as "XX:XX:XX:XX:XX:XX".
+     */
+    public static String unpackAddress(long address) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) (address >>> (40 - i * 8)) & 0xFF;
+            chars[i * 3] = Character.toUpperCase(Character.forDigit(octet >>> 4, 16));
+            chars[i * 3 + 1] = Character.toUpperCase(Character.forDigit(octet & 0x0F, 16));
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns whether the text is an address formatted as "XX:XX:XX:XX:XX:XX".
+     */
+    public static boolean isAddress(String text) {
+        if (text.length() != 17) {
+            return false;
+        }
+        for (int i = 0; i < 17; i++) {
+            char c = text.charAt(i);
+            if (i % 3 == 2 ? c != ':' : Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Classifies a packed address by the two most significant bits of its first octet.
+     */
+    public static int addressType(long address) {
+        switch ((int) (address >>> 46) & 0x3) {
+            case 3:
+                return ADDRESS_RANDOM_STATIC;
+            case 1:
+                return ADDRESS_RESOLVABLE_PRIVATE;
+            case 0:
+                return ADDRESS_NON_RESOLVABLE_PRIVATE;
+            default:
+                return ADDRESS_PUBLIC;
+        }
+    }
+
+    public static String addressTypeName(int addressType) {
+        switch (addressType) {
+            case ADDRESS_RANDOM_STATIC:
+                return "Random Static Address";
+            case ADDRESS_RESOLVABLE_PRIVATE:
+                return "Resolvable Private Address";
+            case ADDRESS_NON_RESOLVABLE_PRIVATE:
+                return "Non-Resolvable Private Address";
+            default:
+                return "Public Address";
+        }
+    }
+
+    /**
+     * Formats every octet of a packed address as 8 binary digits followed by a space.
+     */
+    public static String addressBinary(long address) {
+        char[] bin = new char[6 * 9];
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) (address >>> (40 - i * 8)) & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                bin[i * 9 + bit] = (octet & (0x80 >>> bit)) != 0 ? '1' : '0';
+            }
+            bin[i * 9 + 8] = ' ';
+        }
+        return new String(bin);
+    }
+
+    /**
+     * Formats the last RSSI followed by the smoothed RSSI and, if the device advertises its TX
+     * power, the estimated distance.
+     *
+     * @param distance The estimated distance in meters, or NaN if it is not known.
+     */
+    public static String rssi(int rssi, float smoothedRssi, float distance) {
+        StringBuilder sb = new StringBuilder("RSSI: ").append(rssi)
+                .append(" (smoothed ").append(Math.round(smoothedRssi));
+        if (!Float.isNaN(distance)) {
+            sb.append(", ~").append(Math.round(distance * 10) / 10f).append(" m");
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Formats the packet count, followed by how many packets repeated the previous one and
+     * were not decoded again.
+     */
+    public static String packetsReceived(int count, int unchangedCount) {
+        return "Number of advertisement packets obtained: " + count + " (" + unchangedCount
+                + " unchanged)";
+    }
+
+    /**
+     * Lists the set advertising flags, or "None" if the packet had no flags (-1).
+     */
+    public static String advertisingFlags(int advFlags) {
+        StringBuilder sb = new StringBuilder("Advertising Flags: ");
+        if (advFlags == -1) {
+            return sb.append("None").toString();
+        }
+        if ((advFlags & 0x10) != 0) {
+            sb.append("LE and BR/EDR Capable (Host), ");
+        }
+        if ((advFlags & 0x08) != 0) {
+            sb.append("LE and BR/EDR Capable (Controller), ");
+        }
+        if ((advFlags & 0x04) != 0) {
+            sb.append("BR/EDR Not Supported, ");
+        }
+        if ((advFlags & 0x02) != 0) {
+            sb.append("LE General Discoverable Mode, ");
+        }
+        if ((advFlags & 0x01) != 0) {
+            sb.append("LE Limited Discoverable Mode, ");
+        }
+        sb.setLength(sb.length() - 2);
+        return sb.toString();
+    }
+
+    /**
+     * Formats an interval as milliseconds. Like the "ssSSS" date format used before, only the
+     * seconds within the minute are kept.
+     */
+    public static String advertisingInterval(long intervalNanos) {
+        long millis = intervalNanos / 1000000;
+        return "Advertising Interval: " + ((millis / 1000 % 60) * 1000 + millis % 1000) + " ms";
+    }
+}
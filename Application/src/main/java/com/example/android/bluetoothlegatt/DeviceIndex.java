@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the devices of a {@link DeviceRegistry} in one more order, maintained as they change.
+ *
+ * Devices are ordered by a key given with every update, lowest first, and by address when keys
+ * are equal. The order is a sorted array of slots, with the keys and addresses copied
+ * alongside so a binary search reads nothing else. Moving a device binary searches its old and
+ * new positions and shifts the entries in between by one, so an update allocates nothing, and
+ * costs nothing at all if the key did not change: a quantized key, e.g. whole dBm instead of the
+ * raw smoothed RSSI, keeps the order quiet.
+ *
+ * Devices are identified by their registry slot, so finding a device's key is an array read.
+ */
+class DeviceIndex {
+    private static final int MIN_CAPACITY = 16;
+
+    // Indexed by slot.
+    private boolean[] indexed = new boolean[MIN_CAPACITY];
+    private long[] keys = new long[MIN_CAPACITY];
+    private long[] addresses = new long[MIN_CAPACITY];
+    // The slots in index order, with their keys and addresses. The first size are used.
+    private int[] order = new int[MIN_CAPACITY];
+    private long[] orderKeys = new long[MIN_CAPACITY];
+    private long[] orderAddresses = new long[MIN_CAPACITY];
+    private int size;
+
+    /**
+     * Adds a device, or moves it to the position of its new key.
+     *
+     * @param slot The device's slot in the registry.
+     */
+    public void update(int slot, long address, long key) {
+        if (slot >= indexed.length) {
+            int length = Math.max(slot + 1, indexed.length * 2);
+            indexed = Arrays.copyOf(indexed, length);
+            keys = Arrays.copyOf(keys, length);
+            addresses = Arrays.copyOf(addresses, length);
+        }
+        int from;
+        int to;
+        if (indexed[slot]) {
+            if (keys[slot] == key) {
+                return;
+            }
+            from = search(keys[slot], address);
+            to = -(search(key, address) + 1);
+            if (to > from) {
+                // The entries in between move up to fill the old position.
+                to--;
+                shift(from + 1, from, to - from);
+            } else {
+                shift(to, to + 1, from - to);
+            }
+        } else {
+            if (size == order.length) {
+                order = Arrays.copyOf(order, size * 2);
+                orderKeys = Arrays.copyOf(orderKeys, size * 2);
+                orderAddresses = Arrays.copyOf(orderAddresses, size * 2);
+            }
+            to = -(search(key, address) + 1);
+            shift(to, to + 1, size - to);
+            size++;
+            indexed[slot] = true;
+            addresses[slot] = address;
+        }
+        keys[slot] = key;
+        order[to] = slot;
+        orderKeys[to] = key;
+        orderAddresses[to] = address;
+    }
+
+    /**
+     * Returns the key a device is ordered by. The device must be in the index.
+     */
+    public long getKey(int slot) {
+        return keys[slot];
+    }
+
+    public void remove(int slot) {
+        if (slot >= indexed.length || !indexed[slot]) {
+            return;
+        }
+        int position = search(keys[slot], addresses[slot]);
+        shift(position + 1, position, size - position - 1);
+        size--;
+        indexed[slot] = false;
+    }
+
+    /**
+     * Returns the slot of the device at this position in index order.
+     */
+    public int slotAt(int position) {
+        return order[position];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(indexed, false);
+        size = 0;
+    }
+
+    /**
+     * Binary searches the order for a key and address, same contract as
+     * {@link Arrays#binarySearch}.
+     */
+    private int search(long key, long address) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = orderKeys[mid];
+            if (midKey < key || (midKey == key && orderAddresses[mid] < address)) {
+                low = mid + 1;
+            } else if (midKey != key || orderAddresses[mid] != address) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void shift(int from, int to, int length) {
+        System.arraycopy(order, from, order, to, length);
+        System.arraycopy(orderKeys, from, orderKeys, to, length);
+        System.arraycopy(orderAddresses, from, orderAddresses, to, length);
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Holds scanned devices keyed by their packed address, see {@link DeviceFormatter#packAddress},
+ * kept in ascending address order.
+ *
+ * Looking up a device that has already been seen is a hash lookup, so the per-packet cost does
+ * not depend on how many devices are around. The {@link AddressTable} maps each address to a
+ * slot, and everything the registry keeps per device lives in primitive arrays indexed by that
+ * slot, so a lookup and update touches a few array elements and allocates nothing. The address
+ * order is maintained incrementally: a new device is inserted at its binary-searched position
+ * instead of re-sorting the whole list.
+ *
+ * The slots are also linked in least recently seen order, so {@link #evict} only looks at the
+ * oldest entries: devices that haven't been seen for the time to live, and the least recently
+ * seen ones beyond the capacity, are dropped and handed to the {@link EvictionListener}.
+ *
+ * Callers can keep more per device state in arrays of their own indexed by the same slots, as
+ * {@link DeviceTracks} and {@link DeviceIndex} do. A slot is handed out again once its device
+ * has been evicted.
+ */
+class DeviceRegistry<V> {
+    interface EvictionListener<V> {
+        /**
+         * Called once the device is out of the registry, before its slot is handed out again.
+         */
+        void onEvicted(int slot, long address, V value);
+    }
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final AddressTable table = new AddressTable();
+    // Per device state, indexed by slot.
+    private long[] addresses = new long[MIN_CAPACITY];
+    private long[] lastSeenNanos = new long[MIN_CAPACITY];
+    private Object[] values = new Object[MIN_CAPACITY];
+    // Doubly linked list through the slots in least recently seen order, -1 terminated.
+    private int[] newer = new int[MIN_CAPACITY];
+    private int[] older = new int[MIN_CAPACITY];
+    private int eldest = -1;
+    private int newest = -1;
+    // Slots in ascending address order, the first size() are used.
+    private int[] sorted = new int[MIN_CAPACITY];
+    // 0 for no limit.
+    private final int capacity;
+    private final long timeToLiveNanos;
+    private EvictionListener<V> evictionListener;
+    private long expiredCount;
+    private long overflowCount;
+
+    public DeviceRegistry() {
+        this(0, 0);
+    }
+
+    /**
+     * @param capacity        Most devices kept by {@link #evict}, 0 for no limit.
+     * @param timeToLiveNanos How long a device is kept after it was last seen, 0 for no limit.
+     */
+    public DeviceRegistry(int capacity, long timeToLiveNanos) {
+        this.capacity = capacity;
+        this.timeToLiveNanos = timeToLiveNanos;
+    }
+
+    public void setEvictionListener(EvictionListener<V> evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Returns the device stored for this address, or null if it hasn't been seen yet.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long address) {
+        int slot = table.get(address);
+        return slot >= 0 ? (V) values[slot] : null;
+    }
+
+    /**
+     * Returns the slot of this address, or -1 if it hasn't been seen yet.
+     */
+    public int slotOf(long address) {
+        return table.get(address);
+    }
+
+    /**
+     * Returns the device stored in a slot that is in use.
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V) values[slot];
+    }
+
+    /**
+     * Stores a device under its address, replacing any previous entry, and marks it as the
+     * most recently seen.
+     *
+     * @param lastSeenNanos When the device was seen, on the same clock as {@link #evict}.
+     * @return The slot of the device, the same as before unless the address is new.
+     */
+    public int put(long address, V value, long lastSeenNanos) {
+        int slot = table.get(address);
+        if (slot >= 0) {
+            unlink(slot);
+        } else {
+            slot = table.add(address);
+            ensureCapacity(table.getSlotLimit());
+            addresses[slot] = address;
+            int size = table.size() - 1;
+            int index = -(search(address, size) + 1);
+            System.arraycopy(sorted, index, sorted, index + 1, size - index);
+            sorted[index] = slot;
+        }
+        values[slot] = value;
+        this.lastSeenNanos[slot] = lastSeenNanos;
+        linkNewest(slot);
+        return slot;
+    }
+
+    /**
+     * Drops the devices not seen for the time to live, then the least recently seen ones until
+     * the registry is back within its capacity.
+     *
+     * @return The number of devices dropped.
+     */
+    @SuppressWarnings("unchecked")
+    public int evict(long nowNanos) {
+        int evicted = 0;
+        while (eldest >= 0) {
+            int slot = eldest;
+            boolean expired = timeToLiveNanos > 0
+                    && nowNanos - lastSeenNanos[slot] > timeToLiveNanos;
+            boolean overflow = capacity > 0 && table.size() > capacity;
+            if (!expired && !overflow) {
+                break;
+            }
+            if (expired) {
+                expiredCount++;
+            } else {
+                overflowCount++;
+            }
+            long address = addresses[slot];
+            V value = (V) values[slot];
+            unlink(slot);
+            int size = table.size();
+            int index = search(address, size);
+            System.arraycopy(sorted, index + 1, sorted, index, size - index - 1);
+            table.remove(address);
+            values[slot] = null;
+            if (evictionListener != null) {
+                evictionListener.onEvicted(slot, address, value);
+            }
+            evicted++;
+        }
+        return evicted;
+    }
+
+    /**
+     * Devices dropped because they were not seen for the time to live.
+     */
+    public long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * Devices dropped because the registry was over capacity.
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * Returns a copy of the devices in address order.
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<V> snapshot() {
+        int size = table.size();
+        ArrayList<V> snapshot = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            snapshot.add((V) values[sorted[i]]);
+        }
+        return snapshot;
+    }
+
+    public int size() {
+        return table.size();
+    }
+
+    public void clear() {
+        table.clear();
+        Arrays.fill(values, null);
+        eldest = -1;
+        newest = -1;
+    }
+
+    /**
+     * Binary searches the first {@code size} slots of the address order, same contract as
+     * {@link Arrays#binarySearch}.
+     */
+    private int search(long address, int size) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midAddress = addresses[sorted[mid]];
+            if (midAddress < address) {
+                low = mid + 1;
+            } else if (midAddress > address) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void unlink(int slot) {
+        int o = older[slot];
+        int n = newer[slot];
+        if (o >= 0) {
+            newer[o] = n;
+        } else {
+            eldest = n;
+        }
+        if (n >= 0) {
+            older[n] = o;
+        } else {
+            newest = o;
+        }
+    }
+
+    private void linkNewest(int slot) {
+        older[slot] = newest;
+        newer[slot] = -1;
+        if (newest >= 0) {
+            newer[newest] = slot;
+        } else {
+            eldest = slot;
+        }
+        newest = slot;
+    }
+
+    private void ensureCapacity(int slotLimit) {
+        if (slotLimit <= addresses.length) {
+            return;
+        }
+        int length = addresses.length * 2;
+        addresses = Arrays.copyOf(addresses, length);
+        lastSeenNanos = Arrays.copyOf(lastSeenNanos, length);
+        values = Arrays.copyOf(values, length);
+        newer = Arrays.copyOf(newer, length);
+        older = Arrays.copyOf(older, length);
+        sorted = Arrays.copyOf(sorted, length);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Everything a device list row shows, ready to be assigned to its views.
+ *
+ * A model is built on the ingestion thread when a device's data changes and is not modified
+ * after it has been handed to the list, so a row showing the same model needs no re-bind.
+ */
+class DeviceRenderModel {
+    // Parts of a row that change with almost every packet, see diff().
+    public static final int CHANGED_RSSI = 1;
+    public static final int CHANGED_PACKETS = 1 << 1;
+    public static final int CHANGED_INTERVAL = 1 << 2;
+    // Anything else, the whole row has to be bound again.
+    public static final int CHANGED_OTHER = 1 << 3;
+
+    CharSequence name;
+    CharSequence address;
+    int addressColor;
+    CharSequence bluetoothClass;
+    CharSequence legacy;
+    CharSequence advFlags;
+    CharSequence bondState;
+    CharSequence type;
+    CharSequence manufacturer;
+    CharSequence hashCode;
+    CharSequence rssi;
+    CharSequence packetsReceived;
+    CharSequence advertisingInterval;
+    boolean advertisingIntervalVisible;
+
+    // Inputs of the parts that rarely change, so they can be reused by the next model.
+    int advFlagsValue;
+    byte[] scanRecordBytes;
+
+    /**
+     * Compares what two models show.
+     *
+     * @return The CHANGED_ flags of the parts that differ, 0 if the row looks the same.
+     */
+    public int diff(DeviceRenderModel other) {
+        int changed = 0;
+        if (!same(rssi, other.rssi)) {
+            changed |= CHANGED_RSSI;
+        }
+        if (!same(packetsReceived, other.packetsReceived)) {
+            changed |= CHANGED_PACKETS;
+        }
+        if (!same(advertisingInterval, other.advertisingInterval)
+                || advertisingIntervalVisible != other.advertisingIntervalVisible) {
+            changed |= CHANGED_INTERVAL;
+        }
+        if (!same(name, other.name)
+                || !same(address, other.address)
+                || addressColor != other.addressColor
+                || !same(bluetoothClass, other.bluetoothClass)
+                || !same(legacy, other.legacy)
+                || !same(advFlags, other.advFlags)
+                || !same(bondState, other.bondState)
+                || !same(type, other.type)
+                || !same(manufacturer, other.manufacturer)
+                || !same(hashCode, other.hashCode)) {
+            changed |= CHANGED_OTHER;
+        }
+        return changed;
+    }
+
+    private static boolean same(CharSequence a, CharSequence b) {
+        // Parts carried over from the previous model are the same instance.
+        return a == b || a != null && b != null && a.toString().equals(b.toString());
+    }
+}
@@ -18,83 +18,169 @@ package com.example.android.bluetoothlegatt;
 
 import android.Manifest;
 import android.app.Activity;
-import android.app.ListActivity;
+import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.ParcelUuid;
 import android.os.SystemClock;
 import android.support.v4.content.ContextCompat;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.InputType;
 import android.util.Log;
-import android.util.SparseArray;
+import android.util.TypedValue;
+import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
+import android.widget.EditText;
+import android.widget.FrameLayout;
 import android.widget.LinearLayout;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
  */
-public class DeviceScanActivity extends ListActivity {
+public class DeviceScanActivity extends Activity {
+    private final static String TAG = DeviceScanActivity.class.getSimpleName();
+
+    private RecyclerView mDeviceList;
     private LeDeviceListAdapter mLeDeviceListAdapter;
+    // Takes list snapshots and computes their diffs off the main thread.
+    private final ExecutorService mDiffExecutor = Executors.newSingleThreadExecutor();
+    private ScanIngestor<ScanResult> mScanIngestor;
+    // Decodes large batches on every core before they are merged.
+    private BatchDecoder mBatchDecoder;
     private BluetoothAdapter mBluetoothAdapter;
     private BluetoothLeScanner mBluetoothLeScanner;
-    private boolean mScanning;
+    private ScanScheduler mScanScheduler;
     private Handler mHandler;
-    private HashMap<String, String> BTCompanyIdentifierHash = new HashMap<>();
-    private HashMap<String, String> GAPHash = new HashMap<>();
+    // Mapped on first use by the ingestion thread, see getCompanyIdentifiers().
+    private CompanyIdentifiers mCompanyIdentifiers;
+    private boolean mCompanyIdentifiersLoaded;
+    // Pushed to the controller as ScanFilters, or checked in the app once the controller runs
+    // out of filter slots. Replaced on the main thread when the profile is edited.
+    private volatile ScanFilterProfile mScanFilterProfile;
+    private volatile boolean mScanFilterFallback;
+    private final AtomicLong mFilterDelivered = new AtomicLong();
+    private final AtomicLong mFilterDropped = new AtomicLong();
+    private long mStatsMillis;
+    // Null unless CAPTURE_SCANS is set.
+    private CaptureLog mCaptureLog;
+    private final ScanMetrics mMetrics = new ScanMetrics();
+    private MetricsReporter mMetricsReporter;
+    private TextView mMetricsOverlay;
     private static final int REQUEST_ENABLE_BT = 1;
-    // Stops scanning after 20 seconds.
+    // Stops scanning after 20 seconds, 0 to scan until stopped.
     private static final long SCAN_PERIOD = 20000;
+    // One of the ScanScheduler modes, with the window and interval used by the non-continuous
+    // ones.
+    private static final int SCHEDULER_MODE = ScanScheduler.MODE_CONTINUOUS;
+    private static final long SCAN_WINDOW = 5000;
+    private static final long SCAN_INTERVAL = 10000;
+    // Lets the controller collect results for this long and deliver them in one batch, 0 to
+    // deliver every result as it arrives. Only used when the controller supports batching.
+    private static final long BATCH_REPORT_DELAY = 0;
+    // Refresh the device list at most once per display frame.
+    private static final long REFRESH_INTERVAL = 0;
+    // Advertisement timestamps kept per device, 0 to keep only the packet count and first and
+    // last timestamps. Nothing in the app reads the history, the interval is estimated as
+    // packets come in.
+    private static final int TIMESTAMP_HISTORY = 0;
+    // Timestamps older than this relative to the newest one are dropped, 0 for no limit.
+    private static final long TIMESTAMP_MAX_AGE_NANOS = 60L * 1000000000L;
+    private static final int INTERVAL_MODE = IntervalEstimator.MODE_SMOOTHED;
+    private static final int RSSI_MODE = RssiFilter.MODE_KALMAN;
+    // Path loss exponent for distance estimates, 2 in free space and 2.5 to 4 indoors.
+    private static final float PATH_LOSS_EXPONENT = 2.5f;
+    // Devices not seen for this long are dropped from the list, 0 for no limit.
+    private static final long DEVICE_TTL_NANOS = 5 * 60L * 1000000000L;
+    // Most devices in the list, the least recently seen ones are dropped beyond this, 0 for no
+    // limit.
+    private static final int MAX_DEVICES = 1000;
+    // Summaries kept of dropped devices, 0 to forget them.
+    private static final int MAX_DEVICE_SUMMARIES = 10000;
+    // Lock stripes of the merged devices, a power of two. Threads merging devices of different
+    // stripes don't wait for each other.
+    private static final int MERGER_STRIPES = 8;
+    // Records every scan result to a binary capture log in the app's external files directory.
+    private static final boolean CAPTURE_SCANS = false;
+    private static final int CAPTURE_BUFFER_BYTES = 64 * 1024;
+    private static final long CAPTURE_MAX_FILE_BYTES = 16L * 1024 * 1024;
+    private static final long CAPTURE_FLUSH_NANOS = 1000000000L;
+    private static final long METRICS_PERIOD_MILLIS = 1000;
+    // Menu items of the ScanMerger sort orders, indexed by sort order.
+    private static final int[] SORT_MENU_ITEMS = {
+            R.id.menu_sort_address,
+            R.id.menu_sort_rssi,
+            R.id.menu_sort_last_seen,
+            R.id.menu_sort_packet_count,
+            R.id.menu_sort_company,
+    };
+    // Appends the metrics to a CSV file in the app's external files directory every period.
+    private static final boolean DUMP_METRICS = false;
+    // Where the scan filter profile is saved, see ScanFilterProfile for the format.
+    private static final String SCAN_FILTER_PREFS = "scan_filters";
+    private static final String SCAN_FILTER_PROFILE = "profile";
 
-    private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
     public static String bytesToHex(byte[] bytes) {
-        char[] hexChars = new char[bytes.length * 2];
-        for ( int j = 0; j < bytes.length; j++ ) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = hexArray[v >>> 4];
-            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
-        }
-        return new String(hexChars);
+        return DeviceFormatter.hex(bytes, 0, bytes.length);
     }
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
+        final long startMillis = SystemClock.elapsedRealtime();
         super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_device_scan);
         getActionBar().setTitle(R.string.title_devices);
+        mDeviceList = findViewById(R.id.device_list);
+        mDeviceList.setLayoutManager(new LinearLayoutManager(this));
+        mDeviceList.addItemDecoration(new RowStripes(getResources().getColor(R.color.LightCyan),
+                getResources().getColor(R.color.GhostWhite)));
 
         mHandler = new Handler();
+        mScanScheduler = new ScanScheduler(mScanner, mClock);
+        mScanScheduler.setMode(SCHEDULER_MODE);
+        mScanScheduler.setDurationMillis(SCAN_PERIOD);
+        mScanScheduler.setWindowMillis(SCAN_WINDOW);
+        mScanScheduler.setIntervalMillis(SCAN_INTERVAL);
+        mScanScheduler.setListener(new ScanScheduler.Listener() {
+            @Override
+            public void onScheduleChanged(ScanScheduler scheduler) {
+                invalidateOptionsMenu();
+            }
+        });
 
         // Use this check to determine whether BLE is supported on the device.  Then you can
         // selectively disable BLE-related features.
@@ -126,76 +212,274 @@ public class DeviceScanActivity extends ListActivity {
         } /*else {
             Toast.makeText(this, "Location permissions already granted", Toast.LENGTH_SHORT).show();
         }*/
-        try {
-            InputStream inputStream = getResources().openRawResource(R.raw.bluetoothcompanyidentifiers);
-            BufferedReader br = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-
-            while ((line = br.readLine()) != null) {
-                String str[] = line.split(",");
-                if (str.length < 3) {
-                    //Ignore IDs with no company
-                    continue;
-                }
-                for (int i = 3; i < str.length; i++) {
-                    //Concatenate strings of the company name if they're split
-                    str[2] += str[i];
-                }
-                if (str[2].substring(0,1).equals("\"")) {
-                    //Remove "" if they are at the start and end of the string
-                    str[2] = str[2].substring(1, str[2].length() - 1);
-                }
-                for (int i = 0; i < str.length; i++) {
-                    BTCompanyIdentifierHash.put(str[1], str[2]);
+        // Before the adapter, whose pipeline decodes on it.
+        mBatchDecoder = new BatchDecoder(Runtime.getRuntime().availableProcessors(),
+                ManufacturerDecoders.createDefault());
+        if (mLeDeviceListAdapter == null) {
+            mLeDeviceListAdapter = new LeDeviceListAdapter();
+            mDeviceList.setAdapter(mLeDeviceListAdapter);
+        }
+        mScanFilterProfile = loadScanFilterProfile();
+        if (CAPTURE_SCANS) {
+            File directory = getExternalFilesDir("captures");
+            mCaptureLog = new CaptureLog(directory != null ? directory : getFilesDir(),
+                    "scan-" + System.currentTimeMillis(), CAPTURE_BUFFER_BYTES,
+                    CAPTURE_MAX_FILE_BYTES, CAPTURE_FLUSH_NANOS);
+            mCaptureLog.setErrorListener(new CaptureLog.ErrorListener() {
+                @Override
+                public void onError(IOException e) {
+                    Log.w(TAG, "Capture log stopped", e);
                 }
+            });
+        }
+        mScanIngestor = new ScanIngestor<>(mIngestCallback, mMetrics, REFRESH_INTERVAL);
+        createMetricsOverlay();
+        Log.d(TAG, "onCreate took " + (SystemClock.elapsedRealtime() - startMillis) + " ms");
+    }
+
+    /**
+     * Maps the company identifier table compiled at build time on first use, so it is never
+     * loaded on the main thread. Called on the ingestion thread.
+     *
+     * @return The table, or null if it could not be loaded.
+     */
+    private CompanyIdentifiers getCompanyIdentifiers() {
+        if (!mCompanyIdentifiersLoaded) {
+            mCompanyIdentifiersLoaded = true;
+            final long startMillis = SystemClock.elapsedRealtime();
+            try {
+                AssetFileDescriptor afd = getAssets().openFd(CompanyIdentifiers.ASSET);
+                FileInputStream inputStream = afd.createInputStream();
+                // The mapping stays valid once the file is closed.
+                mCompanyIdentifiers = CompanyIdentifiers.map(inputStream.getChannel(),
+                        afd.getStartOffset(), afd.getLength());
+                inputStream.close();
+                afd.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            inputStream.close();
-            br.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            Log.d(TAG, "Company identifiers mapped in "
+                    + (SystemClock.elapsedRealtime() - startMillis) + " ms");
+        }
+        return mCompanyIdentifiers;
+    }
+
+    private void createMetricsOverlay() {
+        mMetricsOverlay = new TextView(this);
+        mMetricsOverlay.setTypeface(Typeface.MONOSPACE);
+        mMetricsOverlay.setTextSize(TypedValue.COMPLEX_UNIT_SP, 10);
+        mMetricsOverlay.setTextColor(Color.WHITE);
+        mMetricsOverlay.setBackgroundColor(0xB0000000);
+        mMetricsOverlay.setPadding(8, 8, 8, 8);
+        mMetricsOverlay.setVisibility(View.GONE);
+        addContentView(mMetricsOverlay, new FrameLayout.LayoutParams(
+                ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT,
+                Gravity.BOTTOM | Gravity.END));
+        File dumpFile = null;
+        if (DUMP_METRICS) {
+            File directory = getExternalFilesDir("metrics");
+            dumpFile = new File(directory != null ? directory : getFilesDir(),
+                    "metrics-" + System.currentTimeMillis() + ".csv");
         }
+        mMetrics.setGauge(ScanMetrics.QUEUE_DEPTH, new ScanMetrics.Gauge() {
+            @Override
+            public long get() {
+                return mScanIngestor.getQueueDepth();
+            }
+        });
+        mMetrics.setGauge(ScanMetrics.PENDING_UPDATES, new ScanMetrics.Gauge() {
+            @Override
+            public long get() {
+                return mScanIngestor.getPendingUpdates();
+            }
+        });
+        mMetrics.setGauge(ScanMetrics.PENDING_DIFFS, new ScanMetrics.Gauge() {
+            @Override
+            public long get() {
+                return mLeDeviceListAdapter.getPendingDiffs();
+            }
+        });
+        mMetrics.setGauge(ScanMetrics.MAX_QUEUE_DEPTH, new ScanMetrics.Gauge() {
+            @Override
+            public long get() {
+                return mScanIngestor.getMaxQueueDepth();
+            }
+        });
+        mMetricsReporter = new MetricsReporter(mMetrics, METRICS_PERIOD_MILLIS, dumpFile,
+                new MetricsReporter.Listener() {
+                    @Override
+                    public void onReport(String report) {
+                        if (mMetricsOverlay.getVisibility() == View.VISIBLE) {
+                            mMetricsOverlay.setText(report);
+                        }
+                    }
+                });
+    }
 
+    private ScanFilterProfile loadScanFilterProfile() {
+        String text = getSharedPreferences(SCAN_FILTER_PREFS, MODE_PRIVATE)
+                .getString(SCAN_FILTER_PROFILE, "");
         try {
-            InputStream inputStream = getResources().openRawResource(R.raw.gap);
-            BufferedReader br = new BufferedReader(new InputStreamReader(inputStream));
+            return ScanFilterProfile.parse(SCAN_FILTER_PROFILE, text);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Ignoring malformed scan filter profile", e);
+            return new ScanFilterProfile(SCAN_FILTER_PROFILE);
+        }
+    }
 
-            String line;
+    private void saveScanFilterProfile(ScanFilterProfile profile) {
+        getSharedPreferences(SCAN_FILTER_PREFS, MODE_PRIVATE).edit()
+                .putString(SCAN_FILTER_PROFILE, profile.toString())
+                .apply();
+    }
 
-            while ((line = br.readLine()) != null) {
-                String str[] = line.split(",");
-                for (int i = 3; i < str.length; i++) {
-                    //Concatenate strings if they're split
-                    str[2] += str[i];
-                }
-                if (str[2].substring(0,1).equals("\"")) {
-                    //Remove "" if they are at the start and end of the string
-                    str[2] = str[2].substring(1, str[2].length() - 1);
-                }
-                for (int i = 0; i < str.length; i++) {
-                    GAPHash.put(str[0], str[1] + ", " + str[2]);
-                }
+    /**
+     * Lets the scan filter profile be edited as text. The dialog stays open until the text
+     * parses, then the profile is saved and a running scan restarted with its filters.
+     */
+    private void showScanFilterDialog() {
+        final EditText text = new EditText(this);
+        text.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_MULTI_LINE
+                | InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS);
+        text.setTypeface(Typeface.MONOSPACE);
+        text.setTextSize(TypedValue.COMPLEX_UNIT_SP, 12);
+        text.setHint(R.string.scan_filters_hint);
+        text.setText(mScanFilterProfile.toString());
+        final AlertDialog dialog = new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_scan_filters)
+                .setView(text)
+                .setPositiveButton(R.string.save, null)
+                .setNegativeButton(android.R.string.cancel, null)
+                .create();
+        dialog.setOnShowListener(new DialogInterface.OnShowListener() {
+            @Override
+            public void onShow(DialogInterface dialogInterface) {
+                dialog.getButton(AlertDialog.BUTTON_POSITIVE).setOnClickListener(
+                        new View.OnClickListener() {
+                            @Override
+                            public void onClick(View v) {
+                                ScanFilterProfile profile;
+                                try {
+                                    profile = ScanFilterProfile.parse(SCAN_FILTER_PROFILE,
+                                            text.getText().toString());
+                                } catch (IllegalArgumentException e) {
+                                    text.setError(e.getMessage());
+                                    return;
+                                }
+                                saveScanFilterProfile(profile);
+                                setScanFilterProfile(profile);
+                                dialog.dismiss();
+                            }
+                        });
             }
-            inputStream.close();
-            br.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+        });
+        dialog.show();
+    }
+
+    private void setScanFilterProfile(ScanFilterProfile profile) {
+        mScanFilterProfile = profile;
+        mScanFilterFallback = false;
+        mFilterDelivered.set(0);
+        mFilterDropped.set(0);
+        getActionBar().setSubtitle(null);
+        if (mScanScheduler.getState() == ScanScheduler.STATE_SCANNING) {
+            // The filters of a running scan can't be changed.
+            mScanner.stopScan();
+            mScanner.startScan(mScanScheduler.getScanMode());
         }
+    }
 
-        if (mLeDeviceListAdapter == null) {
-            mLeDeviceListAdapter = new LeDeviceListAdapter();
-            setListAdapter(mLeDeviceListAdapter);
+    /**
+     * Compiles the scan filter profile for the controller.
+     *
+     * @return The filters, or null to scan for everything.
+     */
+    private List<ScanFilter> buildScanFilters() {
+        List<ScanFilterProfile.Rule> rules = mScanFilterProfile.getRules();
+        if (rules.isEmpty() || mScanFilterFallback) {
+            return null;
+        }
+        List<ScanFilter> filters = new ArrayList<>(rules.size());
+        for (int i = 0; i < rules.size(); i++) {
+            ScanFilterProfile.Rule rule = rules.get(i);
+            ScanFilter.Builder filter = new ScanFilter.Builder();
+            if (rule.address >= 0) {
+                filter.setDeviceAddress(DeviceFormatter.unpackAddress(rule.address));
+            }
+            if (rule.manufacturerId >= 0) {
+                byte[] data = rule.manufacturerData != null ? rule.manufacturerData : new byte[0];
+                filter.setManufacturerData(rule.manufacturerId, data, rule.manufacturerDataMask);
+            }
+            if (rule.serviceUuid != null) {
+                filter.setServiceUuid(new ParcelUuid(rule.serviceUuid));
+            }
+            if (rule.serviceDataUuid != null) {
+                byte[] data = rule.serviceData != null ? rule.serviceData : new byte[0];
+                filter.setServiceData(new ParcelUuid(rule.serviceDataUuid), data,
+                        rule.serviceDataMask);
+            }
+            filters.add(filter.build());
+        }
+        return filters;
+    }
+
+    /**
+     * Shows where advertisements are being filtered and logs the device list counters, at most
+     * once per second. Called on the main thread.
+     */
+    private void updateStats() {
+        long nowMillis = SystemClock.uptimeMillis();
+        if (nowMillis - mStatsMillis < 1000) {
+            return;
+        }
+        mStatsMillis = nowMillis;
+        mLeDeviceListAdapter.logStats();
+        if (mScanFilterProfile.getRules().isEmpty()) {
+            return;
+        }
+        long delivered = mFilterDelivered.get();
+        long dropped = mFilterDropped.get();
+        String stats;
+        if (mScanFilterFallback) {
+            stats = "Filtered in app: " + dropped + " of " + delivered + " dropped";
+        } else {
+            stats = "Filtered by controller: " + delivered + " delivered";
+        }
+        getActionBar().setSubtitle(stats);
+        Log.d(TAG, stats);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mScanIngestor != null) {
+            mScanIngestor.quit();
+        }
+        if (mBatchDecoder != null) {
+            mBatchDecoder.shutdown();
+        }
+        if (mMetricsReporter != null) {
+            mMetricsReporter.quit();
+        }
+        mDiffExecutor.shutdown();
+        if (mCaptureLog != null) {
+            try {
+                mCaptureLog.close();
+                Log.d(TAG, "Captured " + mCaptureLog.getWrittenBytes() + " bytes, dropped "
+                        + mCaptureLog.getDroppedCount() + " scan results");
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
         }
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main, menu);
-        if (!mScanning) {
+        menu.findItem(R.id.menu_metrics).setChecked(
+                mMetricsOverlay.getVisibility() == View.VISIBLE);
+        menu.findItem(SORT_MENU_ITEMS[mLeDeviceListAdapter.getSortOrder()]).setChecked(true);
+        if (!mScanScheduler.isRunning()) {
             menu.findItem(R.id.menu_stop).setVisible(false);
             menu.findItem(R.id.menu_scan).setVisible(true);
             menu.findItem(R.id.menu_switch).setVisible(true);
@@ -227,6 +511,26 @@ public class DeviceScanActivity extends ListActivity {
                 Intent intent = new Intent(this, MainActivity.class);
                 startActivity(intent);
                 break;
+            case R.id.menu_scan_filters:
+                showScanFilterDialog();
+                break;
+            case R.id.menu_metrics:
+                boolean visible = mMetricsOverlay.getVisibility() != View.VISIBLE;
+                mMetricsOverlay.setVisibility(visible ? View.VISIBLE : View.GONE);
+                item.setChecked(visible);
+                break;
+            case R.id.menu_sort_address:
+            case R.id.menu_sort_rssi:
+            case R.id.menu_sort_last_seen:
+            case R.id.menu_sort_packet_count:
+            case R.id.menu_sort_company:
+                for (int i = 0; i < SORT_MENU_ITEMS.length; i++) {
+                    if (SORT_MENU_ITEMS[i] == item.getItemId()) {
+                        mLeDeviceListAdapter.setSortOrder(i);
+                    }
+                }
+                item.setChecked(true);
+                break;
         }
         return true;
     }
@@ -247,7 +551,7 @@ public class DeviceScanActivity extends ListActivity {
             Toast.makeText(this, "???", Toast.LENGTH_SHORT).show();
 
             mLeDeviceListAdapter = new LeDeviceListAdapter();
-            setListAdapter(mLeDeviceListAdapter);
+            mDeviceList.setAdapter(mLeDeviceListAdapter);
         }
         //scanLeDevice(true);
     }
@@ -266,561 +570,563 @@ public class DeviceScanActivity extends ListActivity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
+        flushCaptureLog();
     }
 
-    @Override
-    protected void onListItemClick(ListView l, View v, int position, long id) {
+    /**
+     * Writes out what was captured so far, which otherwise waits for the next scan result.
+     */
+    private void flushCaptureLog() {
+        if (mCaptureLog != null) {
+            mCaptureLog.flush();
+        }
+    }
+
+    private void onDeviceClicked(int position) {
         final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
         if (device == null) return;
         final Intent intent = new Intent(this, DeviceControlActivity.class);
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
-        if (mScanning) {
-            mBluetoothLeScanner.stopScan(mLeScanCallback);
-            mScanning = false;
-        }
+        mScanScheduler.stop();
         startActivity(intent);
     }
 
     private void scanLeDevice(final boolean enable) {
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothLeScanner.stopScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
-
-            mScanning = true;
-            mLeDeviceListAdapter.resetTime();
-            mBluetoothLeScanner.startScan(mLeScanCallback);
+            mScanScheduler.start();
         } else {
-            mScanning = false;
-            mBluetoothLeScanner.stopScan(mLeScanCallback);
+            mScanScheduler.stop();
         }
         invalidateOptionsMenu();
     }
 
-    private class ScanDevice {
-        private BluetoothDevice device;
-        private ScanRecord scanRecord;
-        private List<UUID> uuidList;
-        private Integer rssi;
-        private Integer count;
-        private ArrayList<Long> timestampNanos = new ArrayList<>();
-        private Timestamp initialTime;
-        private long calculatedInterval;
-        private boolean legacy;
-        private int advFlags;
-
-        public BluetoothDevice getDevice() {
-            return device;
-        }
-
-        public ScanRecord getScanRecord() {
-            return scanRecord;
+    // Starts and stops the BLE scan whenever the scan scheduler says so.
+    private final ScanScheduler.Scanner mScanner = new ScanScheduler.Scanner() {
+        @Override
+        public void startScan(int scanMode) {
+            ScanSettings.Builder settings = new ScanSettings.Builder()
+                    .setScanMode(scanMode);
+            if (BATCH_REPORT_DELAY > 0 && mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                settings.setReportDelay(BATCH_REPORT_DELAY)
+                        .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE);
+            }
+            mBluetoothLeScanner.startScan(buildScanFilters(), settings.build(), mLeScanCallback);
         }
 
-        public List<UUID> getUuidList() {
-            return uuidList;
+        @Override
+        public void stopScan() {
+            mBluetoothLeScanner.stopScan(mLeScanCallback);
+            flushCaptureLog();
         }
+    };
 
-        public Integer getRssi() {
-            return rssi;
+    // Runs the scan scheduler on the main thread.
+    private final ScanScheduler.Clock mClock = new ScanScheduler.Clock() {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
         }
 
-        public Integer getCount() {
-            return count;
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            mHandler.postDelayed(runnable, delayMillis);
         }
 
-        public Timestamp getInitialTime() {
-            return initialTime;
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            mHandler.removeCallbacks(runnable);
         }
+    };
 
-        public ArrayList<Long> getTimestampNanos() {
-            return timestampNanos;
-        }
+    private class ScanDevice extends ScanPipeline.Sighting {
+        private final BluetoothDevice device;
 
-        public long getCalculatedInterval() {
-            return calculatedInterval;
-        }
-
-        public void setDevice(BluetoothDevice device) {
+        /**
+         * @param address The device address packed by {@link DeviceFormatter#packAddress}.
+         */
+        ScanDevice(BluetoothDevice device, long address, long timestampNanos, int rssi,
+                boolean legacy, byte[] scanRecordBytes) {
+            super(address, timestampNanos, rssi, legacy, scanRecordBytes);
             this.device = device;
         }
 
-        public void setScanRecord(ScanRecord scanRecord) {
-            this.scanRecord = scanRecord;
-        }
-
-        public void setUuidList(List<UUID> uuidList) {
-            this.uuidList = uuidList;
-        }
-
-        public void setRssi(Integer rssi) {
-            this.rssi = rssi;
-        }
-
-        public void setCount(Integer count) {
-            this.count = count;
-        }
-
-        public void setTimestampNanos(Long timestampNanos) {
-            this.timestampNanos.add(timestampNanos);
-        }
-
-        public void setTimestampNanosList(ArrayList<Long> timestampNanosList) {
-            this.timestampNanos = timestampNanosList;
-        }
-
-        public void setInitialTime(Timestamp time) {
-            initialTime = time;
-        }
-
-        public void setCalculatedInterval(long calculatedInterval) {
-            this.calculatedInterval = calculatedInterval;
-        }
-
-        public boolean isLegacy() {
-            return legacy;
-        }
-
-        public void setLegacy(boolean legacy) {
-            this.legacy = legacy;
-        }
-
-        public int getAdvFlags() {
-            return advFlags;
-        }
-
-        public void setAdvFlags(int advFlags) {
-            this.advFlags = advFlags;
+        public BluetoothDevice getDevice() {
+            return device;
         }
     }
 
     // Adapter for holding devices found through scanning.
-    private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<ScanDevice> scanDeviceList;
+    private class LeDeviceListAdapter extends RecyclerView.Adapter<ViewHolder> {
+        // Written by the ingestion thread, read by the diff thread.
+        private final StripedScanMerger<ScanDevice> merger;
+        // Decodes and merges on the ingestion thread.
+        private final ScanPipeline<ScanDevice> pipeline;
+        // What the list currently shows, only touched by the main thread.
+        private ArrayList<ScanDevice> scanDevices;
+        private int mSortOrder = ScanMerger.SORT_ADDRESS;
+        // A diff is being computed, and another refresh was asked for in the meantime. Written
+        // by the main thread, also read by the metrics reporter.
+        private volatile boolean mDiffRunning;
+        private volatile boolean mDiffPending;
         private LayoutInflater mInflator;
-        Timestamp initialTime;
+        private final int mColorRandomStatic;
+        private final int mColorResolvablePrivate;
+        private final int mColorNonResolvablePrivate;
+        private final int mColorPublic;
 
         public LeDeviceListAdapter() {
             super();
-            scanDeviceList = new ArrayList<>();
+            merger = new StripedScanMerger<>(MERGER_STRIPES, MAX_DEVICES, DEVICE_TTL_NANOS,
+                    MAX_DEVICE_SUMMARIES);
+            merger.setTimestampHistory(TIMESTAMP_HISTORY, TIMESTAMP_MAX_AGE_NANOS);
+            merger.setIntervalMode(INTERVAL_MODE);
+            merger.setRssiMode(RSSI_MODE);
+            pipeline = new ScanPipeline<>(merger, mBatchDecoder,
+                    ManufacturerDecoders.createDefault(), PATH_LOSS_EXPONENT, mPipelineCallback);
+            scanDevices = new ArrayList<>();
+            setHasStableIds(true);
             mInflator = DeviceScanActivity.this.getLayoutInflater();
+            mColorRandomStatic = getResources().getColor(R.color.OrangeRed);
+            mColorResolvablePrivate = getResources().getColor(R.color.DarkGoldenrod);
+            mColorNonResolvablePrivate = getResources().getColor(R.color.Green);
+            mColorPublic = getResources().getColor(R.color.DarkRed);
         }
 
-        public Comparator<ScanDevice> scanDeviceComparatorAddress = new Comparator<ScanDevice>() {
-            @Override
-            public int compare(ScanDevice scanDevice, ScanDevice other) {
-                String address1 = scanDevice.getDevice().getAddress();
-                String address2 = other.getDevice().getAddress();
-                //ascending order
-                return address1.compareTo(address2);
+        /**
+         * Decodes and merges a batch of scanned devices, see {@link ScanPipeline}. Called on the
+         * ingestion thread. Only the lock stripe of one device is held at a time, so a snapshot
+         * waits for one device at most.
+         */
+        public void addScanDevices(ArrayList<ScanDevice> batch,
+                CompanyIdentifiers companyIdentifiers) {
+            pipeline.decode(batch, companyIdentifiers);
+            pipeline.merge(batch);
+            long mergedNanos = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < batch.size(); i++) {
+                mMetrics.record(ScanMetrics.MERGE_LATENCY,
+                        mergedNanos - batch.get(i).getTimestampNanos());
             }
-        };
-
-        public void resetTime() {
-            initialTime = new Timestamp(System.currentTimeMillis());
+            pipeline.evict(SystemClock.elapsedRealtimeNanos());
         }
 
-        public void addScanDevice(ScanDevice obj) {
-            for (int i = 0; i < scanDeviceList.size(); i++){
-                if (obj.getDevice().getAddress().equals(scanDeviceList.get(i).getDevice().getAddress())) {
-                    obj.setCount(obj.getCount() + scanDeviceList.get(i).getCount());
-                    ArrayList<Long> newList = new ArrayList<>(scanDeviceList.get(i).getTimestampNanos());
-                    newList.addAll(obj.getTimestampNanos());
-                    obj.setTimestampNanosList(newList);
-                    obj.setInitialTime(scanDeviceList.get(i).getInitialTime());
-                    obj.setCalculatedInterval(calcTimestampNanos(newList));
-                    scanDeviceList.set(i, obj);
-                    Collections.sort(scanDeviceList, scanDeviceComparatorAddress);
+        /**
+         * Logs the eviction counters. Called on the main thread.
+         */
+        public void logStats() {
+            Log.d(TAG, merger.size() + " devices resident, " + merger.getSummaryCount()
+                    + " summarized, " + merger.getExpiredCount() + " expired, "
+                    + merger.getOverflowCount() + " dropped over capacity");
+        }
 
-                    return;
-                }
+        /**
+         * Takes a snapshot of the merged devices and diffs it against the list shown, both on
+         * the diff thread, then applies the diff. Called on the main thread.
+         *
+         * Only one diff runs at a time. Refreshes asked for in the meantime are folded into one
+         * that starts as soon as the running diff has been applied.
+         */
+        public void refresh() {
+            if (mDiffRunning) {
+                mDiffPending = true;
+                return;
             }
-            scanDeviceList.add(obj);
-            Collections.sort(scanDeviceList, scanDeviceComparatorAddress);
+            mDiffRunning = true;
+            final ArrayList<ScanDevice> oldDevices = scanDevices;
+            final int sortOrder = mSortOrder;
+            mDiffExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final ArrayList<ScanDevice> newDevices = merger.snapshot(sortOrder);
+                    final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(
+                            new DeviceDiff(oldDevices, newDevices));
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            scanDevices = newDevices;
+                            diff.dispatchUpdatesTo(LeDeviceListAdapter.this);
+                            mDiffRunning = false;
+                            if (mDiffPending) {
+                                mDiffPending = false;
+                                refresh();
+                            }
+                        }
+                    });
+                }
+            });
         }
 
         /**
-         * Sets the advertising interval for this kind of packets if the current one is higher than the new one.
+         * Switches to one of the ScanMerger sort orders. Called on the main thread.
          */
-        public long calcTimestampNanos(ArrayList<Long> tsnList) {
-            Collections.sort(tsnList);
-            long result = 0L;
-            int count = 0;
-            Log.e("Start", "Start");
-
-            for (int i = 0; i < tsnList.size(); i++) {
-                count++;
-                long intervalNanos;
-                if (i > 0) {
-                    intervalNanos = tsnList.get(i) - tsnList.get(i-1);
-                } else {
-                    continue;
-                }
-                Log.e("current", String.valueOf(result));
-                Log.e("next", String.valueOf(intervalNanos));
+        public void setSortOrder(int sortOrder) {
+            mSortOrder = sortOrder;
+            refresh();
+        }
 
-                if (intervalNanos <= 0L)
-                    continue;
-                if (result == 0L)
-                    result = intervalNanos;
-                else if (intervalNanos < result * 0.7 && count < 10)
-                    result = intervalNanos;
-                else if (intervalNanos < result + 3000000) {
-                    final int limitedCount = Math.min(count, 10);
-                    result = (result * (limitedCount - 1) + intervalNanos) / limitedCount;
-                } else if (intervalNanos < result * 1.4) {
-                    result = (result * (29) + intervalNanos) / 30;
-                }
-            }
-            return result;
+        public int getSortOrder() {
+            return mSortOrder;
+        }
+
+        /**
+         * Number of diffs running or waiting to run, at most two. Safe to call from any thread.
+         */
+        public int getPendingDiffs() {
+            return (mDiffRunning ? 1 : 0) + (mDiffPending ? 1 : 0);
         }
 
         public BluetoothDevice getDevice(int position) {
-            return scanDeviceList.get(position).getDevice();
+            return scanDevices.get(position).getDevice();
         }
 
         public void clear() {
-            scanDeviceList.clear();
+            merger.clear();
+            refresh();
         }
 
         @Override
-        public int getCount() {
-            return scanDeviceList.size();
+        public int getItemCount() {
+            return scanDevices.size();
         }
 
         @Override
-        public Object getItem(int i) {
-            return scanDeviceList.get(i);
+        public long getItemId(int position) {
+            return scanDevices.get(position).getAddress();
         }
 
         @Override
-        public long getItemId(int i) {
-            return i;
+        public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            View view = mInflator.inflate(R.layout.listitem_device, parent, false);
+            final ViewHolder viewHolder = new ViewHolder(view);
+            viewHolder.listitemDevicesLayout = view.findViewById(R.id.listitem_deviceLayout);
+            // The rows are striped by RowStripes underneath.
+            viewHolder.listitemDevicesLayout.setBackground(null);
+            viewHolder.deviceAddress = view.findViewById(R.id.device_address);
+            viewHolder.deviceName = view.findViewById(R.id.device_name);
+            viewHolder.deviceBluetoothClass = view.findViewById(R.id.device_bluetoothClass);
+            viewHolder.deviceLegacy = view.findViewById(R.id.device_legacy);
+            viewHolder.deviceAdvFlags = view.findViewById(R.id.device_advFlags);
+            viewHolder.deviceBondState = view.findViewById(R.id.device_bondState);
+            viewHolder.deviceType = view.findViewById(R.id.device_type);
+            viewHolder.deviceManufacturer = view.findViewById(R.id.device_manufacturer);
+            viewHolder.deviceRSSI = view.findViewById(R.id.device_rssi);
+            viewHolder.deviceHashCode = view.findViewById(R.id.device_hashCode);
+            viewHolder.devicePacketsReceived = view.findViewById(R.id.device_packetsReceived);
+
+            viewHolder.deviceAdvertisingInterval = view.findViewById(R.id.device_advertisingInterval);
+            view.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    int position = viewHolder.getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) {
+                        onDeviceClicked(position);
+                    }
+                }
+            });
+            return viewHolder;
         }
 
         @Override
-        public View getView(int i, View view, ViewGroup viewGroup) {
-            ViewHolder viewHolder;
-            // General ListView optimization code.
-            if (view == null) {
-                view = mInflator.inflate(R.layout.listitem_device, null);
-                viewHolder = new ViewHolder();
-                viewHolder.listitemDevicesLayout = view.findViewById(R.id.listitem_deviceLayout);
-                viewHolder.deviceAddress = view.findViewById(R.id.device_address);
-                viewHolder.deviceName = view.findViewById(R.id.device_name);
-                viewHolder.deviceBluetoothClass = view.findViewById(R.id.device_bluetoothClass);
-                viewHolder.deviceLegacy = view.findViewById(R.id.device_legacy);
-                viewHolder.deviceAdvFlags = view.findViewById(R.id.device_advFlags);
-                viewHolder.deviceBondState = view.findViewById(R.id.device_bondState);
-                viewHolder.deviceType = view.findViewById(R.id.device_type);
-                viewHolder.deviceManufacturer = view.findViewById(R.id.device_manufacturer);
-                viewHolder.deviceRSSI = view.findViewById(R.id.device_rssi);
-                viewHolder.deviceHashCode = view.findViewById(R.id.device_hashCode);
-                viewHolder.devicePacketsReceived = view.findViewById(R.id.device_packetsReceived);
-
-                viewHolder.deviceAdvertisingInterval = view.findViewById(R.id.device_advertisingInterval);
-                view.setTag(viewHolder);
-            } else {
-                viewHolder = (ViewHolder) view.getTag();
-            }
-            if (i >= scanDeviceList.size()) {
-                return view;
-            }
-            if (i%2 == 0) {
-                viewHolder.listitemDevicesLayout.setBackgroundColor(getResources().getColor(R.color.LightCyan));
-            }
-            else {
-                viewHolder.listitemDevicesLayout.setBackgroundColor(getResources().getColor(R.color.GhostWhite));
-            }
-            BluetoothDevice device = scanDeviceList.get(i).getDevice();
-            final String deviceName = device.getName();
-            if (deviceName != null && deviceName.length() > 0)
-                viewHolder.deviceName.setText(deviceName);
-            else
-                viewHolder.deviceName.setText(R.string.unknown_device);
-
-            String macAddress = device.getAddress();
-            String[] macAddressParts = macAddress.split(":");
-            // convert hex string to binary values
-            String binString = "";
-            for(int j=0; j<6; j++){
-                Integer hex = Integer.parseInt(macAddressParts[j], 16);
-                String toBin = Integer.toBinaryString(hex);
-                while (toBin.length() < 8) {
-                    toBin = "0" + toBin;
-                }
-                binString += toBin + " ";
-            }
+        public void onBindViewHolder(ViewHolder viewHolder, int position) {
+            long startNanos = System.nanoTime();
+            bindRow(viewHolder, scanDevices.get(position).getRenderModel());
+            recordBind(position, startNanos);
+        }
 
-            String address = "MAC Address: " + device.getAddress() + "\n" + binString;
-            String msb = binString.substring(0, 2);
-            if (msb.equals("11")) {
-                address += "\n" + "Random Static Address";
-                viewHolder.deviceAddress.setTextColor(getResources().getColor(R.color.OrangeRed));
+        @Override
+        public void onBindViewHolder(ViewHolder viewHolder, int position, List<Object> payloads) {
+            if (payloads.isEmpty()) {
+                onBindViewHolder(viewHolder, position);
+                return;
             }
-            else if (msb.equals("01")) {
-                address += "\n" + "Resolvable Private Address";
-                viewHolder.deviceAddress.setTextColor(getResources().getColor(R.color.DarkGoldenrod));
+            long startNanos = System.nanoTime();
+            int changed = 0;
+            for (int i = 0; i < payloads.size(); i++) {
+                changed |= (Integer) payloads.get(i);
             }
-            else if (msb.equals("00")) {
-                address += "\n" + "Non-Resolvable Private Address";
-                viewHolder.deviceAddress.setTextColor(getResources().getColor(R.color.Green));
+            DeviceRenderModel model = scanDevices.get(position).getRenderModel();
+            if ((changed & DeviceRenderModel.CHANGED_RSSI) != 0) {
+                viewHolder.deviceRSSI.setText(model.rssi);
             }
-            else {
-                address += "\n" + "Public Address";
-                viewHolder.deviceAddress.setTextColor(getResources().getColor(R.color.DarkRed));
+            if ((changed & DeviceRenderModel.CHANGED_PACKETS) != 0) {
+                viewHolder.devicePacketsReceived.setText(model.packetsReceived);
             }
-            viewHolder.deviceAddress.setText(address);
-
-            final BluetoothClass bluetoothclass = device.getBluetoothClass();
-
-            if (bluetoothclass != null) {
-                int deviceClassValue = device.getBluetoothClass().getDeviceClass();
-                if (deviceClassValue == BluetoothClass.Device.Major.UNCATEGORIZED) {
-                    viewHolder.deviceBluetoothClass.setText("Uncategorised Bluetooth Device Class");
-                }
-                else if (deviceClassValue == BluetoothClass.Device.Major.MISC) {
-                    viewHolder.deviceBluetoothClass.setText("Misc Bluetooth Device Class");
-                }
-                else if (deviceClassValue == BluetoothClass.Device.WEARABLE_WRIST_WATCH) {
-                    viewHolder.deviceBluetoothClass.setText("Wearable Wrist Watch");
-                }
-                else if (deviceClassValue == 5460) {
-                    viewHolder.deviceBluetoothClass.setText("Windows 10 Desktop");
-                }
-                else if (deviceClassValue == 120) {
-                    viewHolder.deviceBluetoothClass.setText("Apple Device");
-                }
-                else {
-                    viewHolder.deviceBluetoothClass.setText(String.valueOf(deviceClassValue));
-                }
+            if ((changed & DeviceRenderModel.CHANGED_INTERVAL) != 0) {
+                bindInterval(viewHolder, model);
             }
-            else
-                viewHolder.deviceBluetoothClass.setText(R.string.unknown_bluetooth_class);
+            recordBind(position, startNanos);
+        }
 
-            String toAddLegacy = "Advertising Type: ";
-            if  (scanDeviceList.get(i).isLegacy()) {
-                toAddLegacy += "Legacy";
-            } else {
-                toAddLegacy += "Extended";
-            }
-            viewHolder.deviceLegacy.setText(toAddLegacy);
+        private void recordBind(int position, long startNanos) {
+            mMetrics.record(ScanMetrics.BIND_VIEW, System.nanoTime() - startNanos);
+            mMetrics.record(ScanMetrics.BIND_LATENCY, SystemClock.elapsedRealtimeNanos()
+                    - scanDevices.get(position).getTimestampNanos());
+        }
 
-            String toAddAdvFlags = "Advertising Flags: ";
+        private void bindRow(ViewHolder viewHolder, DeviceRenderModel model) {
+            viewHolder.deviceName.setText(model.name);
+            viewHolder.deviceAddress.setText(model.address);
+            viewHolder.deviceAddress.setTextColor(model.addressColor);
+            viewHolder.deviceBluetoothClass.setText(model.bluetoothClass);
+            viewHolder.deviceLegacy.setText(model.legacy);
+            viewHolder.deviceAdvFlags.setText(model.advFlags);
+            viewHolder.deviceBondState.setText(model.bondState);
+            viewHolder.deviceType.setText(model.type);
+            viewHolder.deviceManufacturer.setText(model.manufacturer);
+            viewHolder.deviceHashCode.setText(model.hashCode);
+            viewHolder.deviceRSSI.setText(model.rssi);
+            viewHolder.devicePacketsReceived.setText(model.packetsReceived);
+            bindInterval(viewHolder, model);
+        }
 
-            int advFlags = scanDeviceList.get(i).getAdvFlags();
-            if (advFlags == -1) {
-                toAddAdvFlags += "None";
-            } else {
-                String hex = Integer.toHexString(advFlags).toUpperCase();
-                if (hex.length() < 2) {
-                    hex = "0" + hex;
-                }
-                // convert hex string to binary values
-                String flagBin = "";
+        private void bindInterval(ViewHolder viewHolder, DeviceRenderModel model) {
+            viewHolder.deviceAdvertisingInterval.setText(model.advertisingInterval);
+            viewHolder.deviceAdvertisingInterval.setVisibility(
+                    model.advertisingIntervalVisible ? View.VISIBLE : View.GONE);
+        }
 
-                String toBin = Integer.toBinaryString(Integer.parseInt(hex.substring(0, 1), 16));
-                while (toBin.length() < 4) {
-                    toBin = "0" + toBin;
+        // Filters and counts for the pipeline, and fills in what a row shows of the
+        // BluetoothDevice. Called on the ingestion and decode threads.
+        private final ScanPipeline.Callback<ScanDevice> mPipelineCallback =
+                    new ScanPipeline.Callback<ScanDevice>() {
+                @Override
+                public boolean accept(ScanDevice scanDevice, AdvertisementParser parser) {
+                    return !mScanFilterFallback
+                            || mScanFilterProfile.matches(scanDevice.getAddress(), parser);
                 }
-                flagBin += toBin;
 
-                toBin = Integer.toBinaryString(Integer.parseInt(hex.substring(1), 16));
-                while (toBin.length() < 4) {
-                    toBin = "0" + toBin;
+                @Override
+                public void onFiltered(ScanDevice scanDevice) {
+                    mFilterDropped.incrementAndGet();
+                    mMetrics.onDropped();
                 }
-                flagBin += toBin;
 
-                if (flagBin.substring(3,4).equals("1")) {
-                    toAddAdvFlags += "LE and BR/EDR Capable (Host), ";
-                }
-                if (flagBin.substring(4,5).equals("1")) {
-                    toAddAdvFlags += "LE and BR/EDR Capable (Controller), ";
-                }
-                if (flagBin.substring(5,6).equals("1")) {
-                    toAddAdvFlags += "BR/EDR Not Supported, ";
-                }
-                if (flagBin.substring(6,7).equals("1")) {
-                    toAddAdvFlags += "LE General Discoverable Mode, ";
-                }
-                if (flagBin.substring(7,8).equals("1")) {
-                    toAddAdvFlags += "LE Limited Discoverable Mode, ";
+                @Override
+                public void onDiscovered(ScanDevice scanDevice) {
+                    mScanScheduler.onDeviceDiscovered();
+                    mMetrics.onDiscovered();
                 }
-                toAddAdvFlags = toAddAdvFlags.substring(0, toAddAdvFlags.length() - 2);
-            }
 
-            viewHolder.deviceAdvFlags.setText(toAddAdvFlags);
-
-            final int deviceBond = device.getBondState();
-            if (deviceBond == BluetoothDevice.BOND_BONDED)
-                viewHolder.deviceBondState.setText(R.string.bonded);
-            else if (deviceBond == BluetoothDevice.BOND_BONDING)
-                viewHolder.deviceBondState.setText(R.string.bonding);
-            else if (deviceBond == BluetoothDevice.BOND_NONE)
-                viewHolder.deviceBondState.setText(R.string.not_bonded);
-            else
-                viewHolder.deviceBondState.setText(R.string.unknown_bond);
-
-            final int deviceType = device.getType();
-            if (deviceType == BluetoothDevice.DEVICE_TYPE_CLASSIC)
-                viewHolder.deviceType.setText(R.string.device_classic);
-            else if (deviceType == BluetoothDevice.DEVICE_TYPE_DUAL)
-                viewHolder.deviceType.setText(R.string.device_dual);
-            else if (deviceType == BluetoothDevice.DEVICE_TYPE_LE)
-                viewHolder.deviceType.setText(R.string.device_le);
-            else if (deviceType == BluetoothDevice.DEVICE_TYPE_UNKNOWN)
-                viewHolder.deviceType.setText(R.string.device_unknown_type);
-
-            String toAddHash = "Device Hash: ";
-            SparseArray<byte[]> manufacturer_specific = scanDeviceList.get(i).getScanRecord().getManufacturerSpecificData();
-            for(int j = 0; j < manufacturer_specific.size(); j++) {
-                byte[] ba = manufacturer_specific.valueAt(j);
-                if (ba != null) {
-                    String hexKey = Integer.toHexString(manufacturer_specific.keyAt(j)).toUpperCase();
-                    while (hexKey.length() < 4) {
-                        hexKey = "0" + hexKey;
+                @Override
+                public void render(ScanDevice scanDevice, DeviceRenderModel model,
+                        DeviceRenderModel previous) {
+                    BluetoothDevice device = scanDevice.getDevice();
+
+                    final String deviceName = device.getName();
+                    if (deviceName != null && deviceName.length() > 0)
+                        model.name = deviceName;
+                    else
+                        model.name = getString(R.string.unknown_device);
+
+                    if (previous == null) {
+                        switch (DeviceFormatter.addressType(scanDevice.getAddress())) {
+                            case DeviceFormatter.ADDRESS_RANDOM_STATIC:
+                                model.addressColor = mColorRandomStatic;
+                                break;
+                            case DeviceFormatter.ADDRESS_RESOLVABLE_PRIVATE:
+                                model.addressColor = mColorResolvablePrivate;
+                                break;
+                            case DeviceFormatter.ADDRESS_NON_RESOLVABLE_PRIVATE:
+                                model.addressColor = mColorNonResolvablePrivate;
+                                break;
+                            default:
+                                model.addressColor = mColorPublic;
+                                break;
+                        }
                     }
-                    hexKey = "0x" + hexKey;
-                    toAddHash += hexKey + " " + bytesToHex(ba);
-                    toAddHash += "\n" + ba.length + " bytes";
-                    if (BTCompanyIdentifierHash.containsKey(hexKey)) {
-                        if (BTCompanyIdentifierHash.get(hexKey).equals("Microsoft")) {
-                            String windowsDeviceType = "";
-                            String deviceTypeFromHex = bytesToHex(ba).substring(2,4);
-                            switch (deviceTypeFromHex) {
-                                case "01":
-                                    windowsDeviceType = ", Xbox One";
-                                    break;
-                                case "06":
-                                    windowsDeviceType = ", Apple iPhone";
-                                    break;
-                                case "07":
-                                    windowsDeviceType = ", Apple iPad";
-                                    break;
-                                case "08":
-                                    windowsDeviceType = ", Android device";
-                                    break;
-                                case "09":
-                                    windowsDeviceType = ", Windows 10 Desktop";
-                                    break;
-                                case "11":
-                                    windowsDeviceType = ", Windows 10 Phone";
-                                    break;
-                                case "12":
-                                    windowsDeviceType = ", Linux device";
-                                    break;
-                                case "13":
-                                    windowsDeviceType = ", Windows IoT";
-                                    break;
-                                case "14":
-                                    windowsDeviceType = ", Surface Hub";
-                                    break;
-                            }
-                            viewHolder.deviceManufacturer.setText("Manufacturer: " + BTCompanyIdentifierHash.get(hexKey) + windowsDeviceType);
+
+                    final BluetoothClass bluetoothclass = device.getBluetoothClass();
+
+                    if (bluetoothclass != null) {
+                        int deviceClassValue = bluetoothclass.getDeviceClass();
+                        if (deviceClassValue == BluetoothClass.Device.Major.UNCATEGORIZED) {
+                            model.bluetoothClass = "Uncategorised Bluetooth Device Class";
+                        }
+                        else if (deviceClassValue == BluetoothClass.Device.Major.MISC) {
+                            model.bluetoothClass = "Misc Bluetooth Device Class";
+                        }
+                        else if (deviceClassValue == BluetoothClass.Device.WEARABLE_WRIST_WATCH) {
+                            model.bluetoothClass = "Wearable Wrist Watch";
+                        }
+                        else if (deviceClassValue == 5460) {
+                            model.bluetoothClass = "Windows 10 Desktop";
+                        }
+                        else if (deviceClassValue == 120) {
+                            model.bluetoothClass = "Apple Device";
                         }
                         else {
-                            viewHolder.deviceManufacturer.setText("Beacon Manufacturer: " + BTCompanyIdentifierHash.get(hexKey));
+                            model.bluetoothClass = String.valueOf(deviceClassValue);
                         }
-                    } else {
-                        viewHolder.deviceManufacturer.setText("Beacon Manufacturer: " + hexKey);
                     }
+                    else
+                        model.bluetoothClass = getString(R.string.unknown_bluetooth_class);
+
+                    final int deviceBond = device.getBondState();
+                    if (deviceBond == BluetoothDevice.BOND_BONDED)
+                        model.bondState = getString(R.string.bonded);
+                    else if (deviceBond == BluetoothDevice.BOND_BONDING)
+                        model.bondState = getString(R.string.bonding);
+                    else if (deviceBond == BluetoothDevice.BOND_NONE)
+                        model.bondState = getString(R.string.not_bonded);
+                    else
+                        model.bondState = getString(R.string.unknown_bond);
+
+                    final int deviceType = device.getType();
+                    if (deviceType == BluetoothDevice.DEVICE_TYPE_CLASSIC)
+                        model.type = getString(R.string.device_classic);
+                    else if (deviceType == BluetoothDevice.DEVICE_TYPE_DUAL)
+                        model.type = getString(R.string.device_dual);
+                    else if (deviceType == BluetoothDevice.DEVICE_TYPE_LE)
+                        model.type = getString(R.string.device_le);
+                    else
+                        model.type = getString(R.string.device_unknown_type);
                 }
-            }
-            if (toAddHash != "Device Hash: ") {
-                viewHolder.deviceHashCode.setText(toAddHash);
-            }
+            };
+    }
 
-            String toAddRSSI = "RSSI: " + scanDeviceList.get(i).getRssi();
-            viewHolder.deviceRSSI.setText(toAddRSSI);
+    // Device scan callback.
+    private ScanCallback mLeScanCallback =
+            new ScanCallback() {
+                @Override
+                public void onScanResult(int callbackType, final ScanResult result) {
+                    mScanIngestor.offer(result);
+                }
 
-            String toAddCount = "Number of advertisement packets obtained: " + scanDeviceList.get(i).getCount();
-            viewHolder.devicePacketsReceived.setText(toAddCount);
+                @Override
+                public void onBatchScanResults(List<ScanResult> results) {
+                    mScanIngestor.offerAll(results);
+                }
 
-            ArrayList<Long> tsnList = scanDeviceList.get(i).getTimestampNanos();
+                @Override
+                public void onScanFailed(int errorCode) {
+                    Log.w(TAG, "Scan failed with error " + errorCode);
+                    if (errorCode != SCAN_FAILED_OUT_OF_HARDWARE_RESOURCES) {
+                        return;
+                    }
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mScanFilterFallback || !mScanScheduler.isRunning()) {
+                                return;
+                            }
+                            // Not enough filter slots, scan for everything and filter here.
+                            mScanFilterFallback = true;
+                            mScanner.startScan(mScanScheduler.getScanMode());
+                        }
+                    });
+                }
+            };
 
-            Long calculated = calcTimestampNanos(tsnList);
+    // Builds and merges devices on the ingestion thread, refreshes the list on the main thread.
+    private final ScanIngestor.Callback<ScanResult> mIngestCallback =
+            new ScanIngestor.Callback<ScanResult>() {
+                private final ArrayList<ScanDevice> scannedobjs = new ArrayList<>();
 
-            long rxTimestampMillis = System.currentTimeMillis() -
-                    SystemClock.elapsedRealtime() +
-                    calculated / 1000000;
+                @Override
+                public void onIngest(ArrayList<ScanResult> batch) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        ScanResult result = batch.get(i);
+                        mFilterDelivered.incrementAndGet();
+                        // The only place the address string is parsed.
+                        long address = DeviceFormatter.packAddress(result.getDevice().getAddress());
+                        byte[] scanRecordBytes = result.getScanRecord().getBytes();
+                        if (mCaptureLog != null) {
+                            mCaptureLog.append(result.getTimestampNanos(), address,
+                                    result.getRssi(),
+                                    result.isLegacy() ? CaptureLog.FLAG_LEGACY : 0,
+                                    result.getPrimaryPhy(), result.getSecondaryPhy(),
+                                    scanRecordBytes, 0, scanRecordBytes.length);
+                        }
+                        scannedobjs.add(new ScanDevice(result.getDevice(), address,
+                                result.getTimestampNanos(), result.getRssi(), result.isLegacy(),
+                                scanRecordBytes));
+                    }
+                    mLeDeviceListAdapter.addScanDevices(scannedobjs, getCompanyIdentifiers());
+                    scannedobjs.clear();
+                }
 
-            initialTime = scanDeviceList.get(i).getInitialTime();
-            long trueInitialTime = System.currentTimeMillis() -
-                    SystemClock.elapsedRealtime() +
-                    initialTime.getTime() / 1000000;
-            if ((rxTimestampMillis - trueInitialTime) == 0L
-                    || scanDeviceList.get(i).getCalculatedInterval() == 0L
-            || scanDeviceList.get(i).getCount() == 0) {
-                viewHolder.deviceAdvertisingInterval.setText("Advertising Interval:");
-                viewHolder.deviceAdvertisingInterval.setVisibility(View.GONE);
-            }
-            else {
-                Date rxDate = new Date(scanDeviceList.get(i).getCalculatedInterval() / 1000000);
-                String sDate = new SimpleDateFormat("ssSSS").format(rxDate);
-                while (sDate.substring(0, 1).equals("0")) {
-                    sDate = sDate.substring(1);
+                @Override
+                public void onRefresh() {
+                    mLeDeviceListAdapter.refresh();
+                    mMetrics.setCoalesced(mScanIngestor.getCoalescedUpdates());
+                    updateStats();
                 }
+            };
 
-                String toAddAdvInt = "Advertising Interval: " + sDate + " ms";
+    /**
+     * Tells DiffUtil which rows are the same device and what changed in them: a row whose
+     * model was rebuilt only gets the views that changed bound again, see
+     * {@link DeviceRenderModel#diff}.
+     */
+    private static class DeviceDiff extends DiffUtil.Callback {
+        private final ArrayList<ScanDevice> oldDevices;
+        private final ArrayList<ScanDevice> newDevices;
+
+        DeviceDiff(ArrayList<ScanDevice> oldDevices, ArrayList<ScanDevice> newDevices) {
+            this.oldDevices = oldDevices;
+            this.newDevices = newDevices;
+        }
 
-                viewHolder.deviceAdvertisingInterval.setText(toAddAdvInt);
-                viewHolder.deviceAdvertisingInterval.setVisibility(View.VISIBLE);
-            }
+        @Override
+        public int getOldListSize() {
+            return oldDevices.size();
+        }
 
+        @Override
+        public int getNewListSize() {
+            return newDevices.size();
+        }
 
-            return view;
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return oldDevices.get(oldPosition).getAddress()
+                    == newDevices.get(newPosition).getAddress();
         }
 
-    }
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            // Models are not modified once built, so an unchanged device keeps its model.
+            return oldDevices.get(oldPosition).getRenderModel()
+                    == newDevices.get(newPosition).getRenderModel();
+        }
 
-    // Device scan callback.
-    private ScanCallback mLeScanCallback =
-            new ScanCallback() {
-                @Override
-                public void onScanResult(int callbackType, final ScanResult result) {
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            ScanDevice scannedobj = new ScanDevice();
-                            scannedobj.setDevice(result.getDevice());
-                            scannedobj.setScanRecord(result.getScanRecord());
-                            scannedobj.setUuidList(getServiceUUIDsList(result));
-                            scannedobj.setRssi(result.getRssi());
-                            scannedobj.setTimestampNanos(result.getTimestampNanos());
-                            scannedobj.setCount(1);
-                            scannedobj.setInitialTime(new Timestamp(result.getTimestampNanos()));
-                            scannedobj.setLegacy(result.isLegacy());
-                            scannedobj.setAdvFlags(result.getScanRecord().getAdvertiseFlags());
-                            mLeDeviceListAdapter.addScanDevice(scannedobj);
-                            mLeDeviceListAdapter.notifyDataSetChanged();
-                        }
-                    });
-                }
-            };
+        @Override
+        public Object getChangePayload(int oldPosition, int newPosition) {
+            int changed = oldDevices.get(oldPosition).getRenderModel()
+                    .diff(newDevices.get(newPosition).getRenderModel());
+            return (changed & DeviceRenderModel.CHANGED_OTHER) == 0 ? changed : null;
+        }
+    }
 
-    private List<UUID> getServiceUUIDsList(ScanResult scanResult)
-    {
-        List<ParcelUuid> parcelUuids = scanResult.getScanRecord().getServiceUuids();
-        List<UUID> serviceList = new ArrayList<>();
+    /**
+     * Alternates the row background colors. Drawn underneath the rows rather than bound into
+     * them, so rows moved or shifted by a diff don't have to be bound again for their color.
+     */
+    private static class RowStripes extends RecyclerView.ItemDecoration {
+        private final Paint evenPaint = new Paint();
+        private final Paint oddPaint = new Paint();
+
+        RowStripes(int evenColor, int oddColor) {
+            evenPaint.setColor(evenColor);
+            oddPaint.setColor(oddColor);
+        }
 
-        if (parcelUuids != null) {
-            for (int i = 0; i < parcelUuids.size(); i++) {
-                UUID serviceUUID = parcelUuids.get(i).getUuid();
-                if (!serviceList.contains(serviceUUID))
-                    serviceList.add(serviceUUID);
+        @Override
+        public void onDraw(Canvas canvas, RecyclerView parent, RecyclerView.State state) {
+            for (int i = 0; i < parent.getChildCount(); i++) {
+                View child = parent.getChildAt(i);
+                int position = parent.getChildAdapterPosition(child);
+                if (position == RecyclerView.NO_POSITION) {
+                    continue;
+                }
+                float top = child.getTop() + child.getTranslationY();
+                canvas.drawRect(child.getLeft(), top, child.getRight(), top + child.getHeight(),
+                        position % 2 == 0 ? evenPaint : oddPaint);
             }
         }
-        return serviceList;
     }
 
-    static class ViewHolder {
+    static class ViewHolder extends RecyclerView.ViewHolder {
         LinearLayout listitemDevicesLayout;
         TextView deviceName;
         TextView deviceAddress;
@@ -834,5 +1140,9 @@ public class DeviceScanActivity extends ListActivity {
         TextView deviceHashCode;
         TextView devicePacketsReceived;
         TextView deviceAdvertisingInterval;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Arrays;
+
+/**
+ * Summaries of evicted devices keyed by their packed address, see
+ * {@link DeviceFormatter#packAddress}, the oldest dropped once there are too many.
+ *
+ * Laid out like {@link DeviceRegistry}: an {@link AddressTable} maps each address to a slot,
+ * and the summaries and the order they were added in live in arrays indexed by that slot, so
+ * neither a lookup nor an insertion boxes the address.
+ */
+class DeviceSummaries {
+    private static final int MIN_CAPACITY = 16;
+
+    private final AddressTable table = new AddressTable();
+    // Indexed by slot.
+    private long[] addresses = new long[MIN_CAPACITY];
+    private DeviceSummary[] summaries = new DeviceSummary[MIN_CAPACITY];
+    // Doubly linked list through the slots in the order they were added, -1 terminated.
+    private int[] newer = new int[MIN_CAPACITY];
+    private int[] older = new int[MIN_CAPACITY];
+    private int eldest = -1;
+    private int newest = -1;
+    private final int maxSize;
+
+    /**
+     * @param maxSize Most summaries kept, 0 to keep none.
+     */
+    public DeviceSummaries(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Stores the summary of a device, replacing any previous one but keeping its place in
+     * line, and drops the oldest summary if there are too many.
+     */
+    public void put(long address, DeviceSummary summary) {
+        int slot = table.get(address);
+        if (slot < 0) {
+            slot = table.add(address);
+            ensureCapacity(table.getSlotLimit());
+            addresses[slot] = address;
+            linkNewest(slot);
+        }
+        summaries[slot] = summary;
+        if (table.size() > maxSize) {
+            remove(addresses[eldest]);
+        }
+    }
+
+    /**
+     * Removes the summary of a device.
+     *
+     * @return The summary, or null if there is none.
+     */
+    public DeviceSummary remove(long address) {
+        int slot = table.remove(address);
+        if (slot < 0) {
+            return null;
+        }
+        DeviceSummary summary = summaries[slot];
+        summaries[slot] = null;
+        unlink(slot);
+        return summary;
+    }
+
+    public int size() {
+        return table.size();
+    }
+
+    public void clear() {
+        table.clear();
+        Arrays.fill(summaries, null);
+        eldest = -1;
+        newest = -1;
+    }
+
+    private void unlink(int slot) {
+        int o = older[slot];
+        int n = newer[slot];
+        if (o >= 0) {
+            newer[o] = n;
+        } else {
+            eldest = n;
+        }
+        if (n >= 0) {
+            older[n] = o;
+        } else {
+            newest = o;
+        }
+    }
+
+    private void linkNewest(int slot) {
+        older[slot] = newest;
+        newer[slot] = -1;
+        if (newest >= 0) {
+            newer[newest] = slot;
+        } else {
+            eldest = slot;
+        }
+        newest = slot;
+    }
+
+    private void ensureCapacity(int slotLimit) {
+        if (slotLimit <= addresses.length) {
+            return;
+        }
+        int length = addresses.length * 2;
+        addresses = Arrays.copyOf(addresses, length);
+        summaries = Arrays.copyOf(summaries, length);
+        newer = Arrays.copyOf(newer, length);
+        older = Arrays.copyOf(older, length);
+    }
+}
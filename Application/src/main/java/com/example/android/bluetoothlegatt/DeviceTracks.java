@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Arrays;
+
+/**
+ * What is known about each device across all its sightings: the packet count, the first and
+ * last timestamps, the last and smoothed RSSI, the advertising interval estimate, the last TX
+ * power level, how many advertisements repeated the previous one byte for byte, and optionally
+ * a timestamp history.
+ *
+ * Devices are identified by their {@link DeviceRegistry} slot, and every number is kept in a
+ * primitive array indexed by it, so merging a sighting updates a few array elements in place
+ * and reading a device's numbers for a sort key or a row touches no other object. The
+ * {@link RssiFilter}, {@link IntervalEstimator} and {@link TimestampRingBuffer} of a slot carry
+ * state that depends on their mode, so they stay objects, one per slot, and are reused by the
+ * next device given the slot. Only the thread merging sightings may touch the tracks.
+ */
+class DeviceTracks {
+    private static final int MIN_CAPACITY = 16;
+
+    private int timestampHistory;
+    private long timestampMaxAgeNanos;
+    private int intervalMode = IntervalEstimator.MODE_SMOOTHED;
+    private int rssiMode = RssiFilter.MODE_KALMAN;
+    // Bumped by every setting, slots whose objects were made with an older one remake them.
+    private int settings;
+
+    // Indexed by slot.
+    private int[] counts = new int[MIN_CAPACITY];
+    private long[] firstTimestampNanos = new long[MIN_CAPACITY];
+    private long[] lastTimestampNanos = new long[MIN_CAPACITY];
+    private int[] rssis = new int[MIN_CAPACITY];
+    private float[] smoothedRssis = new float[MIN_CAPACITY];
+    private long[] intervalNanos = new long[MIN_CAPACITY];
+    private int[] txPowerLevels = new int[MIN_CAPACITY];
+    private int[] unchangedCounts = new int[MIN_CAPACITY];
+    private RssiFilter[] rssiFilters = new RssiFilter[MIN_CAPACITY];
+    private IntervalEstimator[] intervalEstimators = new IntervalEstimator[MIN_CAPACITY];
+    // Null where no history is kept.
+    private TimestampRingBuffer[] timestamps = new TimestampRingBuffer[MIN_CAPACITY];
+    private int[] slotSettings = new int[MIN_CAPACITY];
+
+    /**
+     * Sets the timestamp history of devices started from now on.
+     *
+     * @param capacity    Timestamps kept, see {@link TimestampRingBuffer}, 0 to keep only the
+     *                    count and the first and last timestamps.
+     * @param maxAgeNanos Age after which timestamps are dropped, 0 for no limit.
+     */
+    public void setTimestampHistory(int capacity, long maxAgeNanos) {
+        timestampHistory = capacity;
+        timestampMaxAgeNanos = maxAgeNanos;
+        settings++;
+    }
+
+    /**
+     * Sets the {@link IntervalEstimator} mode of devices started from now on.
+     */
+    public void setIntervalMode(int intervalMode) {
+        this.intervalMode = intervalMode;
+        settings++;
+    }
+
+    /**
+     * Sets the {@link RssiFilter} mode of devices started from now on.
+     */
+    public void setRssiMode(int rssiMode) {
+        this.rssiMode = rssiMode;
+        settings++;
+    }
+
+    /**
+     * Starts the track of a device that was just given this slot, forgetting the device that
+     * had it before.
+     */
+    public void start(int slot) {
+        if (slot >= counts.length) {
+            grow(slot + 1);
+        }
+        counts[slot] = 0;
+        firstTimestampNanos[slot] = 0;
+        lastTimestampNanos[slot] = 0;
+        rssis[slot] = 0;
+        smoothedRssis[slot] = 0;
+        intervalNanos[slot] = 0;
+        txPowerLevels[slot] = AdvertisementParser.TX_POWER_UNKNOWN;
+        unchangedCounts[slot] = 0;
+        if (rssiFilters[slot] == null || slotSettings[slot] != settings) {
+            rssiFilters[slot] = new RssiFilter(rssiMode);
+            intervalEstimators[slot] = new IntervalEstimator(intervalMode);
+            timestamps[slot] = timestampHistory > 0
+                    ? new TimestampRingBuffer(timestampHistory, timestampMaxAgeNanos) : null;
+            slotSettings[slot] = settings;
+        } else {
+            rssiFilters[slot].clear();
+            intervalEstimators[slot].clear();
+            if (timestamps[slot] != null) {
+                timestamps[slot].clear();
+            }
+        }
+    }
+
+    /**
+     * Carries on from the summary of an evicted device. Must be called after {@link #start}
+     * and before {@link #add}.
+     */
+    public void restore(int slot, DeviceSummary summary) {
+        counts[slot] = summary.packetCount;
+        firstTimestampNanos[slot] = summary.firstTimestampNanos;
+    }
+
+    /**
+     * Adds a sighting and updates the interval and RSSI estimates, in constant time.
+     *
+     * @param txPowerLevel The advertised TX power level, or
+     *                     {@link AdvertisementParser#TX_POWER_UNKNOWN} to keep the last one.
+     * @param unchanged    Whether the advertisement repeats the previous one byte for byte.
+     */
+    public void add(int slot, long timestampNanos, int rssi, int txPowerLevel,
+            boolean unchanged) {
+        if (unchanged) {
+            unchangedCounts[slot]++;
+        }
+        if (counts[slot] == 0) {
+            firstTimestampNanos[slot] = timestampNanos;
+        }
+        counts[slot]++;
+        lastTimestampNanos[slot] = timestampNanos;
+        rssis[slot] = rssi;
+        RssiFilter rssiFilter = rssiFilters[slot];
+        rssiFilter.add(rssi);
+        smoothedRssis[slot] = rssiFilter.getRssi();
+        if (txPowerLevel != AdvertisementParser.TX_POWER_UNKNOWN) {
+            txPowerLevels[slot] = txPowerLevel;
+        }
+        if (timestamps[slot] != null) {
+            timestamps[slot].add(timestampNanos);
+        }
+        IntervalEstimator intervalEstimator = intervalEstimators[slot];
+        intervalEstimator.add(timestampNanos);
+        intervalNanos[slot] = intervalEstimator.getIntervalNanos();
+    }
+
+    public DeviceSummary summarize(int slot) {
+        DeviceSummary summary = new DeviceSummary();
+        summary.firstTimestampNanos = firstTimestampNanos[slot];
+        summary.lastSeenNanos = lastTimestampNanos[slot];
+        summary.packetCount = counts[slot];
+        summary.lastRssi = rssis[slot];
+        summary.intervalNanos = intervalNanos[slot];
+        return summary;
+    }
+
+    public int getCount(int slot) {
+        return counts[slot];
+    }
+
+    public long getFirstTimestampNanos(int slot) {
+        return firstTimestampNanos[slot];
+    }
+
+    public long getLastTimestampNanos(int slot) {
+        return lastTimestampNanos[slot];
+    }
+
+    /**
+     * Returns the recent timestamps, or null if the device was started without a history.
+     */
+    public TimestampRingBuffer getTimestamps(int slot) {
+        return timestamps[slot];
+    }
+
+    public int getRssi(int slot) {
+        return rssis[slot];
+    }
+
+    /**
+     * Returns the RSSI estimate, see {@link RssiFilter}.
+     */
+    public float getSmoothedRssi(int slot) {
+        return smoothedRssis[slot];
+    }
+
+    /**
+     * Returns the last TX power level the device advertised, or
+     * {@link AdvertisementParser#TX_POWER_UNKNOWN}.
+     */
+    public int getTxPowerLevel(int slot) {
+        return txPowerLevels[slot];
+    }
+
+    /**
+     * Estimates the distance to the device from the smoothed RSSI, see
+     * {@link RssiFilter#estimateDistance}.
+     */
+    public float estimateDistance(int slot, float pathLossExponent) {
+        return RssiFilter.estimateDistance(txPowerLevels[slot], smoothedRssis[slot],
+                pathLossExponent);
+    }
+
+    /**
+     * Returns the number of advertisements that repeated the previous one, whose decoding was
+     * skipped.
+     */
+    public int getUnchangedCount(int slot) {
+        return unchangedCounts[slot];
+    }
+
+    /**
+     * Returns the advertising interval estimate, 0 until there are enough sightings.
+     */
+    public long getIntervalNanos(int slot) {
+        return intervalNanos[slot];
+    }
+
+    private void grow(int minLength) {
+        int length = Math.max(minLength, counts.length * 2);
+        counts = Arrays.copyOf(counts, length);
+        firstTimestampNanos = Arrays.copyOf(firstTimestampNanos, length);
+        lastTimestampNanos = Arrays.copyOf(lastTimestampNanos, length);
+        rssis = Arrays.copyOf(rssis, length);
+        smoothedRssis = Arrays.copyOf(smoothedRssis, length);
+        intervalNanos = Arrays.copyOf(intervalNanos, length);
+        txPowerLevels = Arrays.copyOf(txPowerLevels, length);
+        unchangedCounts = Arrays.copyOf(unchangedCounts, length);
+        rssiFilters = Arrays.copyOf(rssiFilters, length);
+        intervalEstimators = Arrays.copyOf(intervalEstimators, length);
+        timestamps = Arrays.copyOf(timestamps, length);
+        slotSettings = Arrays.copyOf(slotSettings, length);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Estimates the advertising interval of one device, updated packet by packet.
+ *
+ * Each new timestamp costs O(1) and the estimate is cached, so reading it is a field access.
+ */
+class IntervalEstimator {
+    /**
+     * Smooths the gaps between packets: shorter gaps replace the estimate early on, similar
+     * gaps are averaged in and longer gaps, which are usually missed packets, are mostly ignored.
+     */
+    public static final int MODE_SMOOTHED = 0;
+    /**
+     * Median of the last gaps, which is not thrown off by bursts of missed packets.
+     */
+    public static final int MODE_MEDIAN = 1;
+
+    // Gaps kept for the median mode.
+    private static final int MEDIAN_WINDOW = 15;
+
+    private final int mode;
+    private long count;
+    private long lastNanos;
+    private long intervalNanos;
+
+    // Median mode only: the last gaps in arrival order and the same gaps sorted.
+    private final long[] gaps;
+    private final long[] sortedGaps;
+    private int gapHead;
+    private int gapCount;
+
+    public IntervalEstimator(int mode) {
+        this.mode = mode;
+        if (mode == MODE_MEDIAN) {
+            gaps = new long[MEDIAN_WINDOW];
+            sortedGaps = new long[MEDIAN_WINDOW];
+        } else {
+            gaps = null;
+            sortedGaps = null;
+        }
+    }
+
+    /**
+     * Adds the timestamp of a new packet and updates the estimate.
+     */
+    public void add(long timestampNanos) {
+        count++;
+        if (count == 1) {
+            lastNanos = timestampNanos;
+            return;
+        }
+        long gapNanos = timestampNanos - lastNanos;
+        if (gapNanos <= 0L) {
+            return;
+        }
+        lastNanos = timestampNanos;
+        if (mode == MODE_MEDIAN) {
+            intervalNanos = addGap(gapNanos);
+        } else {
+            intervalNanos = smooth(intervalNanos, gapNanos, count);
+        }
+    }
+
+    /**
+     * The estimated interval in nanoseconds, 0 until two packets have been seen.
+     */
+    public long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    public void clear() {
+        count = 0;
+        lastNanos = 0;
+        intervalNanos = 0;
+        gapHead = 0;
+        gapCount = 0;
+    }
+
+    /**
+     * Calculates the smoothed interval over a whole history in one go. This is what the device
+     * list used to do on every update; {@link #add} gives the same result incrementally.
+     */
+    public static long calculate(TimestampRingBuffer tsnList) {
+        long result = 0L;
+        for (int i = 1; i < tsnList.size(); i++) {
+            long intervalNanos = tsnList.get(i) - tsnList.get(i - 1);
+            if (intervalNanos <= 0L)
+                continue;
+            result = smooth(result, intervalNanos, i + 1);
+        }
+        return result;
+    }
+
+    private static long smooth(long result, long intervalNanos, long count) {
+        if (result == 0L)
+            result = intervalNanos;
+        else if (intervalNanos < result * 0.7 && count < 10)
+            result = intervalNanos;
+        else if (intervalNanos < result + 3000000) {
+            final long limitedCount = Math.min(count, 10);
+            result = (result * (limitedCount - 1) + intervalNanos) / limitedCount;
+        } else if (intervalNanos < result * 1.4) {
+            result = (result * (29) + intervalNanos) / 30;
+        }
+        return result;
+    }
+
+    private long addGap(long gapNanos) {
+        if (gapCount == MEDIAN_WINDOW) {
+            // Remove the oldest gap from the sorted window.
+            long oldest = gaps[gapHead];
+            int i = 0;
+            while (sortedGaps[i] != oldest) {
+                i++;
+            }
+            System.arraycopy(sortedGaps, i + 1, sortedGaps, i, gapCount - i - 1);
+            gapCount--;
+        }
+        gaps[gapHead] = gapNanos;
+        gapHead = (gapHead + 1) % MEDIAN_WINDOW;
+
+        int i = gapCount;
+        while (i > 0 && sortedGaps[i - 1] > gapNanos) {
+            sortedGaps[i] = sortedGaps[i - 1];
+            i--;
+        }
+        sortedGaps[i] = gapNanos;
+        gapCount++;
+
+        if (gapCount % 2 == 1) {
+            return sortedGaps[gapCount / 2];
+        }
+        return (sortedGaps[gapCount / 2 - 1] + sortedGaps[gapCount / 2]) / 2;
+    }
+}
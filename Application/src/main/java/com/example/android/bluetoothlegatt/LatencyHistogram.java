@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * A log-linear histogram of nanosecond latencies, in the style of HdrHistogram.
+ *
+ * Every power of two is split into {@link #SUB_BUCKETS} linear buckets, so any recorded value
+ * is reported within about 3% whatever its magnitude, and the counts fit in one preallocated
+ * array. Recording is a few shifts and an increment and never allocates. Not thread safe.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values from 2^MAX_EXPONENT ns, about 18 minutes, up are counted as the highest bucket.
+    private static final int MAX_EXPONENT = 40;
+
+    private final long[] counts = new long[indexOf((1L << MAX_EXPONENT) - 1) + 1];
+    private long totalCount;
+    private long sum;
+    private long max;
+
+    /**
+     * Counts a value. Negative values are counted as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value >= 1L << MAX_EXPONENT) {
+            value = (1L << MAX_EXPONENT) - 1;
+        }
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    private static int indexOf(long value) {
+        // Values below 2 * SUB_BUCKETS get a bucket each, then SUB_BUCKETS per power of two.
+        int shift = 64 - Long.numberOfLeadingZeros(value >>> (SUB_BUCKET_BITS + 1));
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    private static long lowestValueAt(int index) {
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        if (shift <= 0) {
+            return index;
+        }
+        return (long) (index - (shift << SUB_BUCKET_BITS)) << shift;
+    }
+
+    private static long highestValueAt(int index) {
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        return shift <= 0 ? index : lowestValueAt(index) + (1L << shift) - 1;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getMean() {
+        return totalCount > 0 ? sum / totalCount : 0;
+    }
+
+    /**
+     * Returns the highest value the given fraction of the recorded values are at or below,
+     * rounded up to the end of its bucket, or 0 if nothing has been recorded.
+     *
+     * @param percentile Between 0 and 100.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Adds the counts of this histogram to another one.
+     */
+    public void addTo(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            other.counts[i] += counts[i];
+        }
+        other.totalCount += totalCount;
+        other.sum += sum;
+        other.max = Math.max(other.max, max);
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        totalCount = 0;
+        sum = 0;
+        max = 0;
+    }
+}
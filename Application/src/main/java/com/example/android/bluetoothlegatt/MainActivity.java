@@ -44,8 +44,6 @@ public class MainActivity extends Activity
 
     private NfcAdapter mNfcAdapter;
 
-    private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
-
     public void addMessage(View view) {
         String newMessage = txtBoxAddMessage.getText().toString();
         messagesToSendArray.add(newMessage);
@@ -450,13 +448,7 @@ public class MainActivity extends Activity
     }
 
     public static String bytesToHex(byte[] bytes) {
-        char[] hexChars = new char[bytes.length * 2];
-        for ( int j = 0; j < bytes.length; j++ ) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = hexArray[v >>> 4];
-            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
-        }
-        return new String(hexChars);
+        return DeviceFormatter.hex(bytes, 0, bytes.length);
     }
 
     @Override
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Decodes the payload of a manufacturer specific data or service data structure.
+ */
+interface ManufacturerDecoder {
+    /**
+     * Describes a payload read in place from the raw advertisement.
+     *
+     * @param data   The raw advertisement bytes.
+     * @param offset Where the payload starts, after the company identifier or service UUID.
+     * @param length Length of the payload.
+     * @return A short description, or null if the payload isn't understood.
+     */
+    String decode(byte[] data, int offset, int length);
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * Payload decoders, indexed directly by 16-bit company identifier for manufacturer specific
+ * data and by 16-bit service UUID for service data.
+ */
+class ManufacturerDecoders {
+    public static final int COMPANY_MICROSOFT = 0x0006;
+    public static final int COMPANY_APPLE = 0x004C;
+    public static final int SERVICE_FAST_PAIR = 0xFE2C;
+    public static final int SERVICE_EDDYSTONE = 0xFEAA;
+
+    private final ManufacturerDecoder[] byCompany = new ManufacturerDecoder[0x10000];
+    private final ManufacturerDecoder[] byService = new ManufacturerDecoder[0x10000];
+
+    /**
+     * Returns a registry with the decoders for the formats the scanner knows about.
+     */
+    public static ManufacturerDecoders createDefault() {
+        ManufacturerDecoders decoders = new ManufacturerDecoders();
+        decoders.registerCompany(COMPANY_MICROSOFT, new MicrosoftDecoder());
+        decoders.registerCompany(COMPANY_APPLE, new AppleDecoder());
+        decoders.registerService(SERVICE_FAST_PAIR, new FastPairDecoder());
+        decoders.registerService(SERVICE_EDDYSTONE, new EddystoneDecoder());
+        return decoders;
+    }
+
+    public void registerCompany(int companyId, ManufacturerDecoder decoder) {
+        byCompany[companyId & 0xFFFF] = decoder;
+    }
+
+    public void registerService(int serviceUuid16, ManufacturerDecoder decoder) {
+        byService[serviceUuid16 & 0xFFFF] = decoder;
+    }
+
+    /**
+     * Returns the decoder for manufacturer specific data of this company, or null.
+     */
+    public ManufacturerDecoder getCompany(int companyId) {
+        return byCompany[companyId & 0xFFFF];
+    }
+
+    /**
+     * Returns the decoder for service data of this 16-bit service UUID, or null.
+     */
+    public ManufacturerDecoder getService(int serviceUuid16) {
+        return byService[serviceUuid16 & 0xFFFF];
+    }
+
+    /**
+     * Microsoft Connected Devices Platform beacons.
+     */
+    static class MicrosoftDecoder implements ManufacturerDecoder {
+        @Override
+        public String decode(byte[] data, int offset, int length) {
+            if (length < 2) {
+                return null;
+            }
+            // Scenario type, then the version in the top 3 bits and the device type below.
+            switch (data[offset + 1] & 0x1F) {
+                case 1:
+                    return "Xbox One";
+                case 6:
+                    return "Apple iPhone";
+                case 7:
+                    return "Apple iPad";
+                case 8:
+                    return "Android device";
+                case 9:
+                    return "Windows 10 Desktop";
+                case 11:
+                    return "Windows 10 Phone";
+                case 12:
+                    return "Linux device";
+                case 13:
+                    return "Windows IoT";
+                case 14:
+                    return "Surface Hub";
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * iBeacon and the Apple Continuity messages.
+     */
+    static class AppleDecoder implements ManufacturerDecoder {
+        @Override
+        public String decode(byte[] data, int offset, int length) {
+            if (length < 1) {
+                return null;
+            }
+            switch (data[offset]) {
+                case 0x02:
+                    if (length < 23 || data[offset + 1] != 0x15) {
+                        return "iBeacon";
+                    }
+                    UUID uuid = new UUID(int64BigEndian(data, offset + 2),
+                            int64BigEndian(data, offset + 10));
+                    return "iBeacon " + uuid
+                            + " major " + uint16BigEndian(data, offset + 18)
+                            + " minor " + uint16BigEndian(data, offset + 20)
+                            + " TX power " + data[offset + 22] + " dBm";
+                case 0x05:
+                    return "AirDrop";
+                case 0x07:
+                    return "AirPods";
+                case 0x09:
+                    return "AirPlay Target";
+                case 0x0A:
+                    return "AirPlay Source";
+                case 0x0C:
+                    return "Handoff";
+                case 0x0D:
+                    return "Instant Hotspot";
+                case 0x0F:
+                    return "Nearby Action";
+                case 0x10:
+                    return "Nearby Info";
+                case 0x12:
+                    return "Find My";
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Google Fast Pair service data.
+     */
+    static class FastPairDecoder implements ManufacturerDecoder {
+        @Override
+        public String decode(byte[] data, int offset, int length) {
+            if (length == 3) {
+                // Discoverable, the payload is the 24-bit model ID.
+                int modelId = (data[offset] & 0xFF) << 16 | (data[offset + 1] & 0xFF) << 8
+                        | (data[offset + 2] & 0xFF);
+                return "Fast Pair model 0x" + hex(modelId, 6);
+            }
+            return "Fast Pair";
+        }
+    }
+
+    /**
+     * Eddystone service data.
+     */
+    static class EddystoneDecoder implements ManufacturerDecoder {
+        private static final String[] URL_SCHEMES = {
+                "http://www.", "https://www.", "http://", "https://"
+        };
+        private static final String[] URL_EXPANSIONS = {
+                ".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/", ".gov/",
+                ".com", ".org", ".edu", ".net", ".info", ".biz", ".gov"
+        };
+
+        @Override
+        public String decode(byte[] data, int offset, int length) {
+            if (length < 1) {
+                return null;
+            }
+            switch (data[offset]) {
+                case 0x00:
+                    return "Eddystone-UID";
+                case 0x10:
+                    return url(data, offset, length);
+                case 0x20:
+                    return "Eddystone-TLM";
+                case 0x30:
+                    return "Eddystone-EID";
+                default:
+                    return null;
+            }
+        }
+
+        private static String url(byte[] data, int offset, int length) {
+            // Frame type, TX power, URL scheme, encoded URL.
+            if (length < 3 || (data[offset + 2] & 0xFF) >= URL_SCHEMES.length) {
+                return "Eddystone-URL";
+            }
+            StringBuilder sb = new StringBuilder("Eddystone-URL ");
+            sb.append(URL_SCHEMES[data[offset + 2]]);
+            for (int i = offset + 3; i < offset + length; i++) {
+                int c = data[i] & 0xFF;
+                if (c < URL_EXPANSIONS.length) {
+                    sb.append(URL_EXPANSIONS[c]);
+                } else {
+                    sb.append((char) c);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private static int uint16BigEndian(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+
+    private static long int64BigEndian(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static String hex(int value, int digits) {
+        String hex = Integer.toHexString(value).toUpperCase();
+        while (hex.length() < digits) {
+            hex = "0" + hex;
+        }
+        return hex;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Builds the manufacturer and device hash text of a row from the raw advertisement, using the
+ * company identifier table and the payload decoders.
+ */
+class ManufacturerFormatter {
+    private final AdvertisementParser parser = new AdvertisementParser();
+    private final ManufacturerDecoders decoders;
+
+    public ManufacturerFormatter(ManufacturerDecoders decoders) {
+        this.decoders = decoders;
+    }
+
+    /**
+     * Sets {@link DeviceRenderModel#manufacturer} and {@link DeviceRenderModel#hashCode}.
+     *
+     * @param companyIdentifiers The company names, or null to show the identifiers only.
+     */
+    public void format(byte[] scanRecordBytes, CompanyIdentifiers companyIdentifiers,
+            DeviceRenderModel model) {
+        String toAddHash = "Device Hash: ";
+        model.manufacturer = "";
+        parser.parse(scanRecordBytes);
+        for (int j = parser.nextManufacturerData(0); j >= 0;
+                j = parser.nextManufacturerData(j + 1)) {
+            int companyId = parser.getManufacturerId(j);
+            String hexKey = String.format("0x%04X", companyId);
+            int length = parser.getManufacturerDataLength(j);
+            String hex = DeviceFormatter.hex(scanRecordBytes,
+                    parser.getManufacturerDataOffset(j), length);
+            toAddHash += hexKey + " " + hex;
+            toAddHash += "\n" + length + " bytes";
+            String companyName = companyIdentifiers != null
+                    ? companyIdentifiers.get(companyId) : null;
+            if (companyName == null) {
+                companyName = hexKey;
+            }
+            ManufacturerDecoder decoder = decoders.getCompany(companyId);
+            if (decoder != null) {
+                String decoded = decoder.decode(scanRecordBytes,
+                        parser.getManufacturerDataOffset(j), length);
+                model.manufacturer = "Manufacturer: " + companyName
+                        + (decoded != null ? ", " + decoded : "");
+            } else {
+                model.manufacturer = "Beacon Manufacturer: " + companyName;
+            }
+        }
+        for (int j = parser.nextServiceData16(0); j >= 0; j = parser.nextServiceData16(j + 1)) {
+            ManufacturerDecoder decoder = decoders.getService(parser.uint16(parser.offset(j)));
+            String decoded = decoder != null ? decoder.decode(scanRecordBytes,
+                    parser.offset(j) + 2, parser.length(j) - 2) : null;
+            if (decoded != null) {
+                model.manufacturer = model.manufacturer.length() > 0
+                        ? model.manufacturer + "\n" + decoded : decoded;
+            }
+        }
+        model.hashCode = toAddHash.equals("Device Hash: ") ? "" : toAddHash;
+    }
+}
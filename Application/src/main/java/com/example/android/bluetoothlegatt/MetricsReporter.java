@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Samples {@link ScanMetrics} periodically on a background thread, hands the report to the
+ * main thread and optionally appends it to a CSV file.
+ */
+class MetricsReporter {
+    private final static String TAG = MetricsReporter.class.getSimpleName();
+
+    interface Listener {
+        /**
+         * Called on the main thread with the latest report.
+         */
+        void onReport(String report);
+    }
+
+    private final ScanMetrics mMetrics;
+    private final long mPeriodMillis;
+    private final File mDumpFile;
+    private final Listener mListener;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler;
+
+    // Only touched by the reporting thread.
+    private final StringBuilder mText = new StringBuilder();
+    private final StringBuilder mCsv = new StringBuilder();
+    private Writer mDumpWriter;
+    private boolean mDumpFailed;
+
+    /**
+     * @param dumpFile Where to append a CSV line per report, or null.
+     */
+    public MetricsReporter(ScanMetrics metrics, long periodMillis, File dumpFile,
+            Listener listener) {
+        mMetrics = metrics;
+        mPeriodMillis = periodMillis;
+        mDumpFile = dumpFile;
+        mListener = listener;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mThread = new HandlerThread("MetricsReporter", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mReport);
+    }
+
+    public void quit() {
+        mHandler.removeCallbacks(mReport);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeDump();
+            }
+        });
+        mThread.quitSafely();
+    }
+
+    private final Runnable mReport = new Runnable() {
+        @Override
+        public void run() {
+            mMetrics.sample(SystemClock.elapsedRealtimeNanos());
+            mText.setLength(0);
+            mMetrics.formatText(mText);
+            final String report = mText.toString();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onReport(report);
+                }
+            });
+            if (mDumpFile != null && !mDumpFailed) {
+                dump();
+            }
+            mHandler.postDelayed(this, mPeriodMillis);
+        }
+    };
+
+    private void dump() {
+        try {
+            if (mDumpWriter == null) {
+                mDumpFile.getParentFile().mkdirs();
+                mDumpWriter = new FileWriter(mDumpFile, true);
+                mDumpWriter.write(ScanMetrics.CSV_HEADER + "\n");
+            }
+            mCsv.setLength(0);
+            mMetrics.formatCsv(mCsv);
+            mDumpWriter.append(mCsv);
+            mDumpWriter.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write metrics to " + mDumpFile, e);
+            mDumpFailed = true;
+            closeDump();
+        }
+    }
+
+    private void closeDump() {
+        if (mDumpWriter == null) {
+            return;
+        }
+        try {
+            mDumpWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mDumpWriter = null;
+    }
+}
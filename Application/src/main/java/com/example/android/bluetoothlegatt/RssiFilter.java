@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Smooths the RSSI of one device, updated packet by packet.
+ *
+ * Like {@link IntervalEstimator}, each reading costs O(1) and the estimate is cached, so
+ * reading it is a field access. All state is kept in primitive fields.
+ */
+class RssiFilter {
+    /**
+     * Exponentially weighted moving average. Cheap and smooth, but lags behind real changes.
+     */
+    public static final int MODE_EWMA = 0;
+    /**
+     * One dimensional Kalman filter with a random walk model. Follows real changes faster than
+     * the average for the same noise, and settles as readings agree.
+     */
+    public static final int MODE_KALMAN = 1;
+    /**
+     * Median of the last readings, which ignores the odd reflection or collision.
+     */
+    public static final int MODE_MEDIAN = 2;
+
+    private static final float EWMA_ALPHA = 0.25f;
+    // Variance in dBm^2 a device's true RSSI drifts by between packets, and of a single reading.
+    private static final float KALMAN_PROCESS_NOISE = 0.5f;
+    private static final float KALMAN_MEASUREMENT_NOISE = 16f;
+    // Readings kept for the median mode.
+    private static final int MEDIAN_WINDOW = 7;
+
+    // Path loss between the 0 m TX power level a device advertises and the RSSI at 1 m.
+    private static final int TX_POWER_TO_1M_LOSS = 41;
+
+    private final int mode;
+    private int count;
+    private float rssi;
+
+    // Kalman mode only: variance of the estimate.
+    private float variance;
+
+    // Median mode only: the last readings in arrival order and the same readings sorted.
+    private final int[] readings;
+    private final int[] sortedReadings;
+    private int readingHead;
+    private int readingCount;
+
+    public RssiFilter(int mode) {
+        this.mode = mode;
+        if (mode == MODE_MEDIAN) {
+            readings = new int[MEDIAN_WINDOW];
+            sortedReadings = new int[MEDIAN_WINDOW];
+        } else {
+            readings = null;
+            sortedReadings = null;
+        }
+    }
+
+    /**
+     * Adds a reading in dBm and updates the estimate.
+     */
+    public void add(int rssi) {
+        count++;
+        if (mode == MODE_MEDIAN) {
+            this.rssi = addReading(rssi);
+        } else if (count == 1) {
+            this.rssi = rssi;
+            variance = KALMAN_MEASUREMENT_NOISE;
+        } else if (mode == MODE_KALMAN) {
+            float predicted = variance + KALMAN_PROCESS_NOISE;
+            float gain = predicted / (predicted + KALMAN_MEASUREMENT_NOISE);
+            this.rssi += gain * (rssi - this.rssi);
+            variance = (1 - gain) * predicted;
+        } else {
+            this.rssi += EWMA_ALPHA * (rssi - this.rssi);
+        }
+    }
+
+    /**
+     * The smoothed RSSI in dBm, 0 until a reading has been added.
+     */
+    public float getRssi() {
+        return rssi;
+    }
+
+    public void clear() {
+        count = 0;
+        rssi = 0;
+        variance = 0;
+        readingHead = 0;
+        readingCount = 0;
+    }
+
+    /**
+     * Estimates the distance to a device with the log-distance path loss model.
+     *
+     * @param txPowerLevel     The advertised TX power level in dBm, or
+     *                         {@link AdvertisementParser#TX_POWER_UNKNOWN}.
+     * @param rssi             The (smoothed) RSSI in dBm.
+     * @param pathLossExponent 2 in free space, 2.5 to 4 indoors.
+     * @return The distance in meters, or NaN if the device does not advertise its TX power.
+     */
+    public static float estimateDistance(int txPowerLevel, float rssi, float pathLossExponent) {
+        if (txPowerLevel == AdvertisementParser.TX_POWER_UNKNOWN) {
+            return Float.NaN;
+        }
+        int rssiAt1m = txPowerLevel - TX_POWER_TO_1M_LOSS;
+        return (float) Math.pow(10, (rssiAt1m - rssi) / (10 * pathLossExponent));
+    }
+
+    private float addReading(int rssi) {
+        if (readingCount == MEDIAN_WINDOW) {
+            // Remove the oldest reading from the sorted window.
+            int oldest = readings[readingHead];
+            int i = 0;
+            while (sortedReadings[i] != oldest) {
+                i++;
+            }
+            System.arraycopy(sortedReadings, i + 1, sortedReadings, i, readingCount - i - 1);
+            readingCount--;
+        }
+        readings[readingHead] = rssi;
+        readingHead = (readingHead + 1) % MEDIAN_WINDOW;
+
+        int i = readingCount;
+        while (i > 0 && sortedReadings[i - 1] > rssi) {
+            sortedReadings[i] = sortedReadings[i - 1];
+            i--;
+        }
+        sortedReadings[i] = rssi;
+        readingCount++;
+
+        if (readingCount % 2 == 1) {
+            return sortedReadings[readingCount / 2];
+        }
+        return (sortedReadings[readingCount / 2 - 1] + sortedReadings[readingCount / 2]) / 2f;
+    }
+}
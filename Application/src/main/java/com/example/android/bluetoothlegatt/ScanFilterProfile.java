@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A saved set of scan filter rules for watched devices and services.
+ *
+ * An advertisement passes the profile if it matches any of its rules, and matches a rule if it
+ * matches every field the rule sets, same as a list of ScanFilters. The activity compiles the
+ * rules into ScanFilters so the controller drops everything else, and falls back to
+ * {@link #matches} when the controller runs out of filter slots.
+ *
+ * A profile is saved as text, one rule per line, each rule a list of "key=value" fields
+ * separated by ";":
+ * <pre>
+ * address=C0:FF:EE:00:00:01
+ * manufacturer=0x004C;data=0215;mask=FFFF
+ * service=0000FEAA-0000-1000-8000-00805F9B34FB
+ * serviceDataUuid=0000FE2C-0000-1000-8000-00805F9B34FB;serviceData=00;serviceDataMask=00
+ * </pre>
+ */
+class ScanFilterProfile {
+    static class Rule {
+        // Unset fields are null, or -1 for the packed address and company identifier.
+        long address = -1;
+        int manufacturerId = -1;
+        byte[] manufacturerData;
+        byte[] manufacturerDataMask;
+        UUID serviceUuid;
+        UUID serviceDataUuid;
+        byte[] serviceData;
+        byte[] serviceDataMask;
+
+        /**
+         * Checks an advertisement the parser has already been run on.
+         */
+        public boolean matches(long deviceAddress, AdvertisementParser parser) {
+            if (address >= 0 && address != deviceAddress) {
+                return false;
+            }
+            if (serviceUuid != null && !parser.hasServiceUuid(
+                    serviceUuid.getMostSignificantBits(), serviceUuid.getLeastSignificantBits())) {
+                return false;
+            }
+            if (manufacturerId >= 0 && !matchesManufacturerData(parser)) {
+                return false;
+            }
+            if (serviceDataUuid != null) {
+                int index = parser.indexOfServiceData(serviceDataUuid.getMostSignificantBits(),
+                        serviceDataUuid.getLeastSignificantBits());
+                if (index < 0) {
+                    return false;
+                }
+                int uuidLength = parser.getServiceDataUuidLength(index);
+                if (!matchesMasked(parser.getBytes(), parser.offset(index) + uuidLength,
+                        parser.length(index) - uuidLength, serviceData, serviceDataMask)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean matchesManufacturerData(AdvertisementParser parser) {
+            for (int i = parser.nextManufacturerData(0); i >= 0;
+                    i = parser.nextManufacturerData(i + 1)) {
+                if (parser.getManufacturerId(i) == manufacturerId
+                        && matchesMasked(parser.getBytes(), parser.getManufacturerDataOffset(i),
+                        parser.getManufacturerDataLength(i), manufacturerData,
+                        manufacturerDataMask)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final String name;
+    private final ArrayList<Rule> rules = new ArrayList<>();
+
+    public ScanFilterProfile(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    public void addRule(Rule rule) {
+        rules.add(rule);
+    }
+
+    /**
+     * Checks an advertisement the parser has already been run on. A profile without rules
+     * lets everything through.
+     *
+     * @param deviceAddress The packed address, see {@link DeviceFormatter#packAddress}.
+     */
+    public boolean matches(long deviceAddress, AdvertisementParser parser) {
+        if (rules.isEmpty()) {
+            return true;
+        }
+        for (int i = 0; i < rules.size(); i++) {
+            if (rules.get(i).matches(deviceAddress, parser)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads a profile saved with {@link #toString}.
+     *
+     * @throws IllegalArgumentException If a field is unknown or malformed.
+     */
+    public static ScanFilterProfile parse(String name, String text) {
+        ScanFilterProfile profile = new ScanFilterProfile(name);
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            Rule rule = new Rule();
+            for (String field : line.split(";")) {
+                int equals = field.indexOf('=');
+                if (equals < 0) {
+                    throw new IllegalArgumentException("Expected key=value: " + field);
+                }
+                String key = field.substring(0, equals).trim();
+                String value = field.substring(equals + 1).trim();
+                switch (key) {
+                    case "address":
+                        if (!DeviceFormatter.isAddress(value)) {
+                            throw new IllegalArgumentException("Malformed address: " + value);
+                        }
+                        rule.address = DeviceFormatter.packAddress(value);
+                        break;
+                    case "manufacturer":
+                        rule.manufacturerId = Integer.decode(value);
+                        break;
+                    case "data":
+                        rule.manufacturerData = hexToBytes(value);
+                        break;
+                    case "mask":
+                        rule.manufacturerDataMask = hexToBytes(value);
+                        break;
+                    case "service":
+                        rule.serviceUuid = UUID.fromString(value);
+                        break;
+                    case "serviceDataUuid":
+                        rule.serviceDataUuid = UUID.fromString(value);
+                        break;
+                    case "serviceData":
+                        rule.serviceData = hexToBytes(value);
+                        break;
+                    case "serviceDataMask":
+                        rule.serviceDataMask = hexToBytes(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown field: " + key);
+                }
+            }
+            // ScanFilter.Builder would reject these only once the scan starts.
+            if (rule.manufacturerData != null && rule.manufacturerId < 0) {
+                throw new IllegalArgumentException("data without manufacturer: " + line);
+            }
+            if (rule.serviceData != null && rule.serviceDataUuid == null) {
+                throw new IllegalArgumentException("serviceData without serviceDataUuid: "
+                        + line);
+            }
+            checkMask("mask", rule.manufacturerDataMask, "data", rule.manufacturerData);
+            checkMask("serviceDataMask", rule.serviceDataMask, "serviceData", rule.serviceData);
+            profile.addRule(rule);
+        }
+        return profile;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < rules.size(); i++) {
+            Rule rule = rules.get(i);
+            int start = sb.length();
+            appendField(sb, start, "address",
+                    rule.address >= 0 ? DeviceFormatter.unpackAddress(rule.address) : null);
+            if (rule.manufacturerId >= 0) {
+                appendField(sb, start, "manufacturer",
+                        String.format("0x%04X", rule.manufacturerId));
+            }
+            appendField(sb, start, "data", bytesToHex(rule.manufacturerData));
+            appendField(sb, start, "mask", bytesToHex(rule.manufacturerDataMask));
+            appendField(sb, start, "service",
+                    rule.serviceUuid != null ? rule.serviceUuid.toString() : null);
+            appendField(sb, start, "serviceDataUuid",
+                    rule.serviceDataUuid != null ? rule.serviceDataUuid.toString() : null);
+            appendField(sb, start, "serviceData", bytesToHex(rule.serviceData));
+            appendField(sb, start, "serviceDataMask", bytesToHex(rule.serviceDataMask));
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Checks a payload against a prefix the way ScanFilter does: every bit set in the mask, or
+     * every bit if there is no mask, has to be equal.
+     */
+    static boolean matchesMasked(byte[] bytes, int offset, int length, byte[] data, byte[] mask) {
+        if (data == null) {
+            return true;
+        }
+        if (length < data.length) {
+            return false;
+        }
+        for (int i = 0; i < data.length; i++) {
+            int m = mask != null && i < mask.length ? mask[i] : 0xFF;
+            if (((bytes[offset + i] ^ data[i]) & m) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void checkMask(String maskKey, byte[] mask, String dataKey, byte[] data) {
+        if (mask == null) {
+            return;
+        }
+        if (data == null) {
+            throw new IllegalArgumentException(maskKey + " without " + dataKey);
+        }
+        if (mask.length != data.length) {
+            throw new IllegalArgumentException(maskKey + " is " + mask.length + " bytes but "
+                    + dataKey + " is " + data.length);
+        }
+    }
+
+    private static void appendField(StringBuilder sb, int start, String key, String value) {
+        if (value == null) {
+            return;
+        }
+        if (sb.length() > start) {
+            sb.append(';');
+        }
+        sb.append(key).append('=').append(value);
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd number of hex digits: " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String bytesToHex(byte[] bytes) {
+        return bytes != null ? DeviceFormatter.hex(bytes, 0, bytes.length) : null;
+    }
+}
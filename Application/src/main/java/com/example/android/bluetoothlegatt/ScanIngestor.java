@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Moves scan results off the main thread.
+ *
+ * Results are queued from the scan callback and merged in batches on a dedicated background
+ * thread. The main thread is told about changes at most once per frame, or once per refresh
+ * interval if one is given, no matter how many results were merged in between.
+ */
+class ScanIngestor<T> {
+    interface Callback<T> {
+        /**
+         * Called on the ingestion thread with every result queued since the last batch.
+         */
+        void onIngest(ArrayList<T> batch);
+
+        /**
+         * Called on the main thread after one or more batches have been merged.
+         */
+        void onRefresh();
+    }
+
+    private final Callback<T> mCallback;
+    private final ScanMetrics mMetrics;
+    private final long mRefreshIntervalMillis;
+    private final HandlerThread mIngestThread;
+    private final Handler mIngestHandler;
+    private final Handler mMainHandler;
+    private final Choreographer mChoreographer;
+
+    private final ConcurrentLinkedQueue<T> mQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMergedSinceRefresh = new AtomicInteger();
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private final AtomicBoolean mRefreshScheduled = new AtomicBoolean();
+    // Only touched by the ingestion thread.
+    private final ArrayList<T> mBatch = new ArrayList<>();
+
+    // Only touched by the main thread.
+    private long mCoalescedUpdates;
+
+    /**
+     * Must be created on the main thread.
+     *
+     * @param metrics               Counts every merged batch and the CPU time it took.
+     * @param refreshIntervalMillis Minimum time between two refreshes, or 0 to refresh at most
+     *                              once per display frame.
+     */
+    public ScanIngestor(Callback<T> callback, ScanMetrics metrics, long refreshIntervalMillis) {
+        mCallback = callback;
+        mMetrics = metrics;
+        mRefreshIntervalMillis = refreshIntervalMillis;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mChoreographer = Choreographer.getInstance();
+        mIngestThread = new HandlerThread("ScanIngestor", Process.THREAD_PRIORITY_BACKGROUND);
+        mIngestThread.start();
+        mIngestHandler = new Handler(mIngestThread.getLooper());
+    }
+
+    /**
+     * Queues a result for merging. Safe to call from any thread, in particular binder threads.
+     */
+    public void offer(T item) {
+        mQueue.add(item);
+        queued(mQueueDepth.incrementAndGet());
+    }
+
+    /**
+     * Queues a batch of results, e.g. from onBatchScanResults, to be merged in one pass. Safe to
+     * call from any thread.
+     */
+    public void offerAll(List<T> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+        mQueue.addAll(items);
+        queued(mQueueDepth.addAndGet(items.size()));
+    }
+
+    private void queued(int depth) {
+        int max = mMaxQueueDepth.get();
+        while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth)) {
+            max = mMaxQueueDepth.get();
+        }
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mIngestHandler.post(mDrain);
+        }
+    }
+
+    /**
+     * Number of results waiting to be merged.
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * Number of merged batches waiting for a refresh.
+     */
+    public int getPendingUpdates() {
+        return mMergedSinceRefresh.get();
+    }
+
+    /**
+     * Number of merged batches that did not get a refresh of their own.
+     */
+    public long getCoalescedUpdates() {
+        return mCoalescedUpdates;
+    }
+
+    public void quit() {
+        mIngestHandler.removeCallbacks(mDrain);
+        mMainHandler.removeCallbacks(mRefresh);
+        mMainHandler.removeCallbacks(mPostFrame);
+        mChoreographer.removeFrameCallback(mFrameCallback);
+        mIngestThread.quitSafely();
+    }
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            mDrainScheduled.set(false);
+            T item;
+            while ((item = mQueue.poll()) != null) {
+                mBatch.add(item);
+            }
+            if (mBatch.isEmpty()) {
+                return;
+            }
+            mQueueDepth.addAndGet(-mBatch.size());
+            long cpuStartNanos = Debug.threadCpuTimeNanos();
+            mCallback.onIngest(mBatch);
+            mMetrics.onIngested(mBatch.size(), Debug.threadCpuTimeNanos() - cpuStartNanos);
+            mBatch.clear();
+            mMergedSinceRefresh.incrementAndGet();
+            scheduleRefresh();
+        }
+    };
+
+    private void scheduleRefresh() {
+        if (!mRefreshScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        if (mRefreshIntervalMillis > 0) {
+            mMainHandler.postDelayed(mRefresh, mRefreshIntervalMillis);
+        } else {
+            mMainHandler.post(mPostFrame);
+        }
+    }
+
+    private final Runnable mPostFrame = new Runnable() {
+        @Override
+        public void run() {
+            mChoreographer.postFrameCallback(mFrameCallback);
+        }
+    };
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mRefresh.run();
+        }
+    };
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mRefreshScheduled.set(false);
+            int merged = mMergedSinceRefresh.getAndSet(0);
+            if (merged > 1) {
+                mCoalescedUpdates += merged - 1;
+            }
+            mCallback.onRefresh();
+        }
+    };
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayList;
+
+/**
+ * Merges sightings into the devices seen so far.
+ *
+ * Every sighting of a device replaces the previous one in the {@link DeviceRegistry}, and is
+ * added to the device's numbers in the {@link DeviceTracks}, which are kept by registry slot.
+ * Devices evicted from the registry are summarized, so a device that comes back carries on
+ * where it left off.
+ *
+ * Besides the address order, the devices are kept sorted by smoothed RSSI, last sighting,
+ * packet count and company, each {@link DeviceIndex} updated as devices are merged, so
+ * switching between the orders costs no more than a snapshot.
+ *
+ * The merger has no Android dependencies, so the app and the replay harness run the exact same
+ * merge. It is not thread safe.
+ */
+class ScanMerger<V extends ScanMerger.Sighting> {
+    public static final int SORT_ADDRESS = 0;
+    // Strongest smoothed RSSI first.
+    public static final int SORT_RSSI = 1;
+    // Most recently seen first.
+    public static final int SORT_LAST_SEEN = 2;
+    // Most packets first.
+    public static final int SORT_PACKET_COUNT = 3;
+    // Ascending company identifier, devices without manufacturer data last.
+    public static final int SORT_COMPANY = 4;
+
+    interface Sighting {
+        /**
+         * Returns the packed address, see {@link DeviceFormatter#packAddress}.
+         */
+        long getAddress();
+
+        long getTimestampNanos();
+
+        int getRssi();
+
+        /**
+         * Returns the advertised TX power level, or {@link AdvertisementParser#TX_POWER_UNKNOWN}.
+         */
+        int getTxPowerLevel();
+
+        /**
+         * Returns the company identifier of the first manufacturer specific data, or -1.
+         */
+        int getCompanyId();
+
+        /**
+         * Returns the {@link XxHash64} of the raw advertisement.
+         */
+        long getPayloadHash();
+    }
+
+    private final DeviceRegistry<V> registry;
+    private final DeviceTracks tracks = new DeviceTracks();
+    private final DeviceSummaries summaries;
+    private final boolean keepSummaries;
+    // Indexed by sort order, null for the address order the registry keeps itself.
+    private final DeviceIndex[] indexes = new DeviceIndex[SORT_COMPANY + 1];
+
+    /**
+     * @param capacity        Most devices kept, see {@link DeviceRegistry}.
+     * @param timeToLiveNanos How long a device is kept after it was last seen.
+     * @param maxSummaries    Summaries kept of evicted devices, 0 to forget them.
+     */
+    public ScanMerger(int capacity, long timeToLiveNanos, int maxSummaries) {
+        registry = new DeviceRegistry<>(capacity, timeToLiveNanos);
+        summaries = new DeviceSummaries(maxSummaries);
+        keepSummaries = maxSummaries > 0;
+        for (int sortOrder = SORT_RSSI; sortOrder < indexes.length; sortOrder++) {
+            indexes[sortOrder] = new DeviceIndex();
+        }
+        registry.setEvictionListener(new DeviceRegistry.EvictionListener<V>() {
+            @Override
+            public void onEvicted(int slot, long address, V value) {
+                for (int sortOrder = SORT_RSSI; sortOrder < indexes.length; sortOrder++) {
+                    indexes[sortOrder].remove(slot);
+                }
+                if (keepSummaries) {
+                    summaries.put(address, tracks.summarize(slot));
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the timestamp history of new devices, see {@link DeviceTracks#setTimestampHistory}.
+     * New devices keep no history until this is called with a capacity above 0.
+     */
+    public void setTimestampHistory(int capacity, long maxAgeNanos) {
+        tracks.setTimestampHistory(capacity, maxAgeNanos);
+    }
+
+    /**
+     * Sets the {@link IntervalEstimator} mode of new devices.
+     */
+    public void setIntervalMode(int intervalMode) {
+        tracks.setIntervalMode(intervalMode);
+    }
+
+    /**
+     * Sets the {@link RssiFilter} mode of new devices.
+     */
+    public void setRssiMode(int rssiMode) {
+        tracks.setRssiMode(rssiMode);
+    }
+
+    /**
+     * Merges a sighting and makes it the device's entry.
+     *
+     * @return True if the device has never been seen before, not even before an eviction.
+     */
+    public boolean merge(V sighting) {
+        long address = sighting.getAddress();
+        V existing = registry.get(address);
+        int slot = registry.put(address, sighting, sighting.getTimestampNanos());
+        boolean discovered = false;
+        if (existing == null) {
+            tracks.start(slot);
+            DeviceSummary summary = summaries.remove(address);
+            if (summary != null) {
+                tracks.restore(slot, summary);
+            } else {
+                discovered = true;
+            }
+        }
+        // The previous sighting holds the last advertisement added.
+        tracks.add(slot, sighting.getTimestampNanos(), sighting.getRssi(),
+                sighting.getTxPowerLevel(),
+                existing != null && existing.getPayloadHash() == sighting.getPayloadHash());
+        for (int sortOrder = SORT_RSSI; sortOrder < indexes.length; sortOrder++) {
+            indexes[sortOrder].update(slot, address, keyOf(sortOrder, slot, sighting));
+        }
+        return discovered;
+    }
+
+    private long keyOf(int sortOrder, int slot, V value) {
+        switch (sortOrder) {
+            case SORT_RSSI:
+                return -Math.round(tracks.getSmoothedRssi(slot));
+            case SORT_LAST_SEEN:
+                return -value.getTimestampNanos();
+            case SORT_PACKET_COUNT:
+                return -tracks.getCount(slot);
+            default:
+                int companyId = value.getCompanyId();
+                return companyId >= 0 ? companyId : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Evicts devices, see {@link DeviceRegistry#evict}. Should be called after a whole batch
+     * has been merged, so none of its devices is evicted before it has been handled.
+     */
+    public int evict(long nowNanos) {
+        return registry.evict(nowNanos);
+    }
+
+    public V get(long address) {
+        return registry.get(address);
+    }
+
+    /**
+     * Returns the slot a device's numbers are kept under in {@link #getTracks}, or -1 if it
+     * isn't in the registry.
+     */
+    public int slotOf(long address) {
+        return registry.slotOf(address);
+    }
+
+    public DeviceTracks getTracks() {
+        return tracks;
+    }
+
+    /**
+     * Returns a copy of the devices in address order.
+     */
+    public ArrayList<V> snapshot() {
+        return registry.snapshot();
+    }
+
+    /**
+     * Returns a copy of the devices in the given order.
+     *
+     * @param sortOrder One of the SORT_ constants.
+     */
+    public ArrayList<V> snapshot(int sortOrder) {
+        if (sortOrder == SORT_ADDRESS) {
+            return registry.snapshot();
+        }
+        DeviceIndex index = indexes[sortOrder];
+        ArrayList<V> snapshot = new ArrayList<>(index.size());
+        for (int i = 0; i < index.size(); i++) {
+            snapshot.add(registry.valueAt(index.slotAt(i)));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the key a device is ordered by in the given order. Devices are sorted by key,
+     * lowest first, then by address.
+     *
+     * @param sortOrder One of the SORT_ constants.
+     * @param value     The device's current entry.
+     */
+    public long keyOf(int sortOrder, V value) {
+        if (sortOrder == SORT_ADDRESS) {
+            return value.getAddress();
+        }
+        return indexes[sortOrder].getKey(registry.slotOf(value.getAddress()));
+    }
+
+    public int size() {
+        return registry.size();
+    }
+
+    public int getSummaryCount() {
+        return summaries.size();
+    }
+
+    public long getExpiredCount() {
+        return registry.getExpiredCount();
+    }
+
+    public long getOverflowCount() {
+        return registry.getOverflowCount();
+    }
+
+    public void clear() {
+        registry.clear();
+        for (int sortOrder = SORT_RSSI; sortOrder < indexes.length; sortOrder++) {
+            indexes[sortOrder].clear();
+        }
+        summaries.clear();
+    }
+}
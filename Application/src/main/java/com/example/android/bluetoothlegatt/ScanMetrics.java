@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scanner health counters and latency histograms, cheap enough to record for every packet.
+ *
+ * Counters and histograms can be recorded from any thread without allocating. One reporting
+ * thread calls {@link #sample} periodically, which moves everything recorded since the last
+ * sample into the interval histograms the report is formatted from, and reads the gauges.
+ */
+class ScanMetrics {
+    // Time from the scan result timestamp to the result being merged.
+    public static final int MERGE_LATENCY = 0;
+    // Time from the scan result timestamp to its row being bound.
+    public static final int BIND_LATENCY = 1;
+    // Time spent binding one row.
+    public static final int BIND_VIEW = 2;
+    private static final String[] HISTOGRAM_NAMES = {"scan->merge", "scan->bind", "bindView"};
+
+    // Results delivered by the scanner and waiting to be merged.
+    public static final int QUEUE_DEPTH = 0;
+    // Merged batches waiting for a refresh of the list.
+    public static final int PENDING_UPDATES = 1;
+    // List diffs running or waiting to run.
+    public static final int PENDING_DIFFS = 2;
+    // Deepest the queue has been since scanning started.
+    public static final int MAX_QUEUE_DEPTH = 3;
+    private static final String[] GAUGE_NAMES =
+            {"queue", "pending updates", "pending diffs", "max queue"};
+
+    public static final String CSV_HEADER = "elapsed_ms,packets_per_s,cpu_per_packet_us,"
+            + "new_devices_per_s,dropped,coalesced,queue_depth,pending_updates,pending_diffs,"
+            + "max_queue_depth,merge_p50_us,"
+            + "merge_p99_us,merge_max_us,bind_p50_us,bind_p99_us,bind_max_us,bindview_p50_us,"
+            + "bindview_p99_us,bindview_max_us";
+
+    interface Gauge {
+        /**
+         * Returns the current value. Called on the reporting thread.
+         */
+        long get();
+    }
+
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong ingestCpuNanos = new AtomicLong();
+    private final AtomicLong discovered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    // Each guarded by itself.
+    private final LatencyHistogram[] recording = new LatencyHistogram[HISTOGRAM_NAMES.length];
+    private final Gauge[] gauges = new Gauge[GAUGE_NAMES.length];
+
+    // Only touched by the reporting thread.
+    private final LatencyHistogram[] interval = new LatencyHistogram[HISTOGRAM_NAMES.length];
+    private final long[] gaugeValues = new long[GAUGE_NAMES.length];
+    private long lastSampleNanos;
+    private long lastPackets;
+    private long lastIngestCpuNanos;
+    private long lastDiscovered;
+    private long elapsedNanos;
+    private float packetsPerSecond;
+    private float cpuMicrosPerPacket;
+    private float discoveredPerSecond;
+
+    public ScanMetrics() {
+        for (int i = 0; i < recording.length; i++) {
+            recording[i] = new LatencyHistogram();
+            interval[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Counts packets merged in one batch and the ingestion thread CPU time they took.
+     */
+    public void onIngested(int count, long cpuNanos) {
+        packets.addAndGet(count);
+        ingestCpuNanos.addAndGet(cpuNanos);
+    }
+
+    /**
+     * Counts a device seen for the first time.
+     */
+    public void onDiscovered() {
+        discovered.incrementAndGet();
+    }
+
+    /**
+     * Counts a packet that was delivered but not merged.
+     */
+    public void onDropped() {
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Sets the number of merged batches that shared a refresh with another one.
+     */
+    public void setCoalesced(long count) {
+        coalesced.set(count);
+    }
+
+    /**
+     * Sets where one of the gauges is read from when a sample is taken. Must be called before
+     * the first sample.
+     *
+     * @param gauge One of {@link #QUEUE_DEPTH}, {@link #PENDING_UPDATES}, {@link #PENDING_DIFFS},
+     *              {@link #MAX_QUEUE_DEPTH}.
+     */
+    public void setGauge(int gauge, Gauge source) {
+        gauges[gauge] = source;
+    }
+
+    /**
+     * Records a time into one of the histograms.
+     *
+     * @param histogram One of {@link #MERGE_LATENCY}, {@link #BIND_LATENCY}, {@link #BIND_VIEW}.
+     */
+    public void record(int histogram, long nanos) {
+        LatencyHistogram h = recording[histogram];
+        synchronized (h) {
+            h.record(nanos);
+        }
+    }
+
+    /**
+     * Starts a new interval: rates are computed over the time since the last call, and the
+     * histograms hold what was recorded in between.
+     */
+    public void sample(long nowNanos) {
+        for (int i = 0; i < recording.length; i++) {
+            interval[i].reset();
+            synchronized (recording[i]) {
+                recording[i].addTo(interval[i]);
+                recording[i].reset();
+            }
+        }
+        for (int i = 0; i < gauges.length; i++) {
+            gaugeValues[i] = gauges[i] != null ? gauges[i].get() : 0;
+        }
+        long packetCount = packets.get();
+        long cpuNanos = ingestCpuNanos.get();
+        long discoveredCount = discovered.get();
+        if (lastSampleNanos != 0 && nowNanos > lastSampleNanos) {
+            float seconds = (nowNanos - lastSampleNanos) / 1e9f;
+            elapsedNanos += nowNanos - lastSampleNanos;
+            packetsPerSecond = (packetCount - lastPackets) / seconds;
+            discoveredPerSecond = (discoveredCount - lastDiscovered) / seconds;
+            cpuMicrosPerPacket = packetCount > lastPackets
+                    ? (cpuNanos - lastIngestCpuNanos) / 1e3f / (packetCount - lastPackets) : 0;
+        }
+        lastSampleNanos = nowNanos;
+        lastPackets = packetCount;
+        lastIngestCpuNanos = cpuNanos;
+        lastDiscovered = discoveredCount;
+    }
+
+    /**
+     * Appends the last sample as a few lines of text.
+     */
+    public void formatText(StringBuilder sb) {
+        sb.append(String.format(Locale.US,
+                "%.0f packets/s, %.1fus CPU/packet, %.1f new devices/s%n",
+                packetsPerSecond, cpuMicrosPerPacket, discoveredPerSecond));
+        sb.append("dropped ").append(dropped.get())
+                .append(", coalesced ").append(coalesced.get());
+        for (int i = 0; i < gaugeValues.length; i++) {
+            sb.append(i == 0 ? String.format(Locale.US, "%n") : ", ")
+                    .append(GAUGE_NAMES[i]).append(' ').append(gaugeValues[i]);
+        }
+        for (int i = 0; i < interval.length; i++) {
+            LatencyHistogram h = interval[i];
+            sb.append(String.format(Locale.US, "%n%-11s p50 %s p99 %s max %s (%d)",
+                    HISTOGRAM_NAMES[i], formatNanos(h.getValueAtPercentile(50)),
+                    formatNanos(h.getValueAtPercentile(99)), formatNanos(h.getMax()),
+                    h.getTotalCount()));
+        }
+    }
+
+    /**
+     * Appends the last sample as one line matching {@link #CSV_HEADER}.
+     */
+    public void formatCsv(StringBuilder sb) {
+        sb.append(elapsedNanos / 1000000).append(',')
+                .append(packetsPerSecond).append(',')
+                .append(cpuMicrosPerPacket).append(',')
+                .append(discoveredPerSecond).append(',')
+                .append(dropped.get()).append(',')
+                .append(coalesced.get());
+        for (int i = 0; i < gaugeValues.length; i++) {
+            sb.append(',').append(gaugeValues[i]);
+        }
+        for (int i = 0; i < interval.length; i++) {
+            LatencyHistogram h = interval[i];
+            sb.append(',').append(h.getValueAtPercentile(50) / 1000)
+                    .append(',').append(h.getValueAtPercentile(99) / 1000)
+                    .append(',').append(h.getMax() / 1000);
+        }
+        sb.append('\n');
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos >= 1000000000L) {
+            return String.format(Locale.US, "%.1fs", nanos / 1e9);
+        }
+        if (nanos >= 1000000) {
+            return String.format(Locale.US, "%.1fms", nanos / 1e6);
+        }
+        return String.format(Locale.US, "%.0fus", nanos / 1e3);
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Takes a batch of scan results from raw advertisements to list rows.
+ *
+ * {@link #decode} hashes every advertisement and links it to the previous sighting of its
+ * device, in the batch or already merged. An advertisement repeating that one byte for byte is
+ * not decoded again. The rest are parsed, filtered and decoded on the {@link BatchDecoder}, and
+ * only the last sighting of every device has its manufacturer text decoded ahead, as only that
+ * one keeps its row. {@link #merge} then merges the sightings and builds their rows, and
+ * {@link #evict} evicts once the whole batch is in.
+ *
+ * The pipeline has no Android dependencies, so the app and the replay harness run the exact same
+ * steps. What depends on the platform, the filter and the parts of a row that come from the
+ * BluetoothDevice, goes through a {@link Callback}.
+ */
+class ScanPipeline<V extends ScanPipeline.Sighting> {
+
+    interface Callback<V> {
+        /**
+         * Returns whether a sighting is kept, given its parsed advertisement. Called on the
+         * decode threads.
+         */
+        boolean accept(V sighting, AdvertisementParser parser);
+
+        /**
+         * Called for every sighting dropped, either by {@link #accept} or because it repeats
+         * one that was. Called on the thread running {@link #decode}.
+         */
+        void onFiltered(V sighting);
+
+        /**
+         * Called for every device never seen before, see {@link ScanMerger#merge}. Called on
+         * the thread merging it, outside of any lock.
+         */
+        void onDiscovered(V sighting);
+
+        /**
+         * Fills in the parts of a row the pipeline doesn't know about. Called under the lock of
+         * the device's stripe.
+         *
+         * @param previous The device's previous row, or null for its first.
+         */
+        void render(V sighting, DeviceRenderModel model, DeviceRenderModel previous);
+    }
+
+    /**
+     * A scan result on its way through the pipeline, and once merged, the entry of its device.
+     * Subclasses add what the platform knows about the device.
+     */
+    static class Sighting implements ScanMerger.Sighting {
+        final long address;
+        final long timestampNanos;
+        final int rssi;
+        final boolean legacy;
+        byte[] scanRecordBytes;
+        long payloadHash;
+        int txPowerLevel;
+        int companyId;
+        int advFlags;
+        boolean filtered;
+        // Cleared by decode() when a later sighting of the device follows in the batch.
+        boolean lastInBatch = true;
+        // An earlier sighting whose advertisement this one repeats, until the batch is decoded.
+        Sighting repeated;
+        DeviceRenderModel renderModel;
+        // The manufacturer text decoded ahead of the merge, or null.
+        DeviceRenderModel decodedModel;
+
+        /**
+         * @param address The device address packed by {@link DeviceFormatter#packAddress}.
+         */
+        Sighting(long address, long timestampNanos, int rssi, boolean legacy,
+                byte[] scanRecordBytes) {
+            this.address = address;
+            this.timestampNanos = timestampNanos;
+            this.rssi = rssi;
+            this.legacy = legacy;
+            this.scanRecordBytes = scanRecordBytes;
+        }
+
+        @Override
+        public long getAddress() {
+            return address;
+        }
+
+        @Override
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+
+        @Override
+        public int getRssi() {
+            return rssi;
+        }
+
+        @Override
+        public int getTxPowerLevel() {
+            return txPowerLevel;
+        }
+
+        @Override
+        public int getCompanyId() {
+            return companyId;
+        }
+
+        @Override
+        public long getPayloadHash() {
+            return payloadHash;
+        }
+
+        public boolean isLegacy() {
+            return legacy;
+        }
+
+        public int getAdvFlags() {
+            return advFlags;
+        }
+
+        public byte[] getScanRecordBytes() {
+            return scanRecordBytes;
+        }
+
+        /**
+         * Returns the row of the device, never null once the sighting has been merged.
+         */
+        public DeviceRenderModel getRenderModel() {
+            return renderModel;
+        }
+    }
+
+    private final StripedScanMerger<V> merger;
+    private final BatchDecoder batchDecoder;
+    private final Callback<V> callback;
+    private final float pathLossExponent;
+    // For rows whose manufacturer text was not decoded ahead, on every merging thread.
+    private final ThreadLocal<ManufacturerFormatter> formatters;
+    // The company names the batch was decoded with, also used by the merge.
+    private CompanyIdentifiers companyIdentifiers;
+    // The batch being decoded.
+    private ArrayList<V> batch;
+    // The addresses of the batch, to find the last sighting of every device.
+    private final AddressTable batchAddresses = new AddressTable();
+    // Indexed by batchAddresses slot, the latest sighting of the device so far.
+    private Sighting[] latestInBatch = new Sighting[16];
+    private long unchanged;
+
+    /**
+     * @param pathLossExponent For distance estimates, see {@link DeviceTracks#estimateDistance}.
+     */
+    public ScanPipeline(StripedScanMerger<V> merger, BatchDecoder batchDecoder,
+            final ManufacturerDecoders decoders, float pathLossExponent, Callback<V> callback) {
+        this.merger = merger;
+        this.batchDecoder = batchDecoder;
+        this.pathLossExponent = pathLossExponent;
+        this.callback = callback;
+        formatters = new ThreadLocal<ManufacturerFormatter>() {
+            @Override
+            protected ManufacturerFormatter initialValue() {
+                return new ManufacturerFormatter(decoders);
+            }
+        };
+    }
+
+    /**
+     * Links, parses, filters and decodes a batch, and takes the sightings filtered out of it.
+     * Must not run while anything is merged, so the rows it looks at stay put.
+     *
+     * @param companyIdentifiers The company names, or null.
+     */
+    public void decode(ArrayList<V> batch, CompanyIdentifiers companyIdentifiers) {
+        this.companyIdentifiers = companyIdentifiers;
+        batchAddresses.clear();
+        for (int i = 0; i < batch.size(); i++) {
+            Sighting sighting = batch.get(i);
+            sighting.payloadHash = XxHash64.hash(sighting.scanRecordBytes, 0,
+                    sighting.scanRecordBytes.length);
+            boolean seen = batchAddresses.get(sighting.address) >= 0;
+            int slot = batchAddresses.add(sighting.address);
+            if (slot >= latestInBatch.length) {
+                latestInBatch = Arrays.copyOf(latestInBatch, latestInBatch.length * 2);
+            }
+            Sighting previous = seen ? latestInBatch[slot] : null;
+            if (previous != null) {
+                previous.lastInBatch = false;
+                if (previous.payloadHash == sighting.payloadHash) {
+                    sighting.repeated = previous;
+                }
+            } else {
+                // The merged sighting holds the device's last advertisement.
+                previous = merger.get(sighting.address);
+                if (previous != null && previous.payloadHash == sighting.payloadHash) {
+                    sighting.repeated = previous;
+                }
+            }
+            sighting.lastInBatch = true;
+            latestInBatch[slot] = sighting;
+        }
+        Arrays.fill(latestInBatch, null);
+        this.batch = batch;
+        batchDecoder.decode(batch.size(), decoder);
+        this.batch = null;
+        int kept = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            V sighting = batch.get(i);
+            Sighting repeated = sighting.repeated;
+            if (repeated != null) {
+                // Earlier sightings are resolved first, so the repeated one is complete.
+                sighting.filtered = repeated.filtered;
+                sighting.advFlags = repeated.advFlags;
+                sighting.txPowerLevel = repeated.txPowerLevel;
+                sighting.companyId = repeated.companyId;
+                sighting.scanRecordBytes = repeated.scanRecordBytes;
+                sighting.repeated = null;
+                unchanged++;
+            }
+            if (sighting.filtered) {
+                callback.onFiltered(sighting);
+            } else {
+                batch.set(kept++, sighting);
+            }
+        }
+        batch.subList(kept, batch.size()).clear();
+    }
+
+    // Runs on the decode threads, see BatchDecoder.
+    private final BatchDecoder.Decoder decoder = new BatchDecoder.Decoder() {
+        @Override
+        public void decode(int index, AdvertisementParser parser,
+                ManufacturerFormatter formatter) {
+            V sighting = batch.get(index);
+            if (sighting.repeated != null) {
+                return;
+            }
+            parser.parse(sighting.scanRecordBytes);
+            if (!callback.accept(sighting, parser)) {
+                sighting.filtered = true;
+                return;
+            }
+            sighting.advFlags = parser.getAdvertiseFlags();
+            sighting.txPowerLevel = parser.getTxPowerLevel();
+            sighting.companyId = parser.getFirstManufacturerId();
+            if (!sighting.lastInBatch) {
+                return;
+            }
+            Sighting existing = merger.get(sighting.address);
+            DeviceRenderModel previous = existing == null ? null : existing.renderModel;
+            if (previous == null
+                    || !Arrays.equals(previous.scanRecordBytes, sighting.scanRecordBytes)) {
+                sighting.decodedModel = new DeviceRenderModel();
+                formatter.format(sighting.scanRecordBytes, companyIdentifiers,
+                        sighting.decodedModel);
+            }
+        }
+    };
+
+    /**
+     * Merges sightings, each one looking at the device's previous sighting and replacing it
+     * under the lock of its stripe. The row of the device is built in the same critical section,
+     * so nothing ever sees a merged device without one: the last sighting of a device in the
+     * batch gets a row of its own, the others keep the row the device has, unless it has none
+     * yet.
+     *
+     * Safe to call from any number of threads at once. Only if all sightings of a device are
+     * merged by the same thread are they merged in the order of the batch.
+     */
+    public void merge(List<V> sightings) {
+        for (int i = 0; i < sightings.size(); i++) {
+            V sighting = sightings.get(i);
+            long address = sighting.getAddress();
+            boolean discovered;
+            ScanMerger<V> stripe = merger.lock(address);
+            try {
+                Sighting existing = stripe.get(address);
+                DeviceRenderModel previous = existing == null ? null : existing.renderModel;
+                discovered = stripe.merge(sighting);
+                sighting.renderModel = sighting.lastInBatch || previous == null
+                        ? buildRenderModel(sighting, previous, stripe.getTracks(),
+                                stripe.slotOf(address))
+                        : previous;
+                sighting.decodedModel = null;
+            } finally {
+                merger.unlock(address);
+            }
+            if (discovered) {
+                callback.onDiscovered(sighting);
+            }
+        }
+    }
+
+    /**
+     * Evicts devices, see {@link StripedScanMerger#evict}. Should be called once the whole batch
+     * has been merged, so none of its devices is dropped before it has been handled.
+     */
+    public int evict(long nowNanos) {
+        return merger.evict(nowNanos);
+    }
+
+    /**
+     * Returns how many sightings repeated the previous advertisement of their device, and were
+     * not decoded.
+     */
+    public long getUnchangedCount() {
+        return unchanged;
+    }
+
+    /**
+     * Builds what a row shows for a device. Parts whose inputs did not change since the previous
+     * row are reused from it.
+     *
+     * @param slot The device's slot in the tracks of its stripe.
+     */
+    private DeviceRenderModel buildRenderModel(V device, DeviceRenderModel previous,
+            DeviceTracks tracks, int slot) {
+        DeviceRenderModel model = new DeviceRenderModel();
+        if (previous != null) {
+            // The address is what the device is keyed by, so it never changes.
+            model.address = previous.address;
+            model.addressColor = previous.addressColor;
+        } else {
+            int addressType = DeviceFormatter.addressType(device.address);
+            model.address = "MAC Address: " + DeviceFormatter.unpackAddress(device.address) + "\n"
+                    + DeviceFormatter.addressBinary(device.address) + "\n"
+                    + DeviceFormatter.addressTypeName(addressType);
+        }
+        model.legacy = device.legacy ? "Advertising Type: Legacy" : "Advertising Type: Extended";
+        model.advFlagsValue = device.advFlags;
+        if (previous != null && previous.advFlagsValue == device.advFlags) {
+            model.advFlags = previous.advFlags;
+        } else {
+            model.advFlags = DeviceFormatter.advertisingFlags(device.advFlags);
+        }
+        model.scanRecordBytes = device.scanRecordBytes;
+        if (previous != null && Arrays.equals(previous.scanRecordBytes, device.scanRecordBytes)) {
+            model.manufacturer = previous.manufacturer;
+            model.hashCode = previous.hashCode;
+        } else if (device.decodedModel != null) {
+            model.manufacturer = device.decodedModel.manufacturer;
+            model.hashCode = device.decodedModel.hashCode;
+        } else {
+            formatters.get().format(device.scanRecordBytes, companyIdentifiers, model);
+        }
+        model.rssi = DeviceFormatter.rssi(device.rssi, tracks.getSmoothedRssi(slot),
+                tracks.estimateDistance(slot, pathLossExponent));
+        model.packetsReceived = DeviceFormatter.packetsReceived(tracks.getCount(slot),
+                tracks.getUnchangedCount(slot));
+        long calculated = tracks.getIntervalNanos(slot);
+        model.advertisingIntervalVisible = calculated != 0L
+                && calculated / 1000000 != tracks.getFirstTimestampNanos(slot) / 1000000;
+        model.advertisingInterval = model.advertisingIntervalVisible
+                ? DeviceFormatter.advertisingInterval(calculated) : "Advertising Interval:";
+        callback.render(device, model, previous);
+        return model;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides when to scan and in which scan mode.
+ *
+ * <ul>
+ * <li>{@link #MODE_CONTINUOUS} scans until stopped, or for the set duration.</li>
+ * <li>{@link #MODE_WINDOWED} scans for a window at the start of every interval.</li>
+ * <li>{@link #MODE_ADAPTIVE} is windowed, but after every interval the window grows and the
+ * scan mode goes to low latency when many new devices were discovered, and the window shrinks
+ * and the scan mode goes back to balanced when few were.</li>
+ * </ul>
+ *
+ * The scheduler only talks to the outside world through {@link Scanner} and {@link Clock}, so it
+ * can be driven by a Handler and the BluetoothLeScanner, or by a fake clock and scanner. Every
+ * pending transition is cancelled by {@link #stop}. All methods except
+ * {@link #onDeviceDiscovered} must be called on the clock's thread.
+ */
+class ScanScheduler {
+    public static final int MODE_CONTINUOUS = 0;
+    public static final int MODE_WINDOWED = 1;
+    public static final int MODE_ADAPTIVE = 2;
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_SCANNING = 1;
+    public static final int STATE_PAUSED = 2;
+
+    // Same values as the ScanSettings scan modes.
+    public static final int SCAN_MODE_LOW_POWER = 0;
+    public static final int SCAN_MODE_BALANCED = 1;
+    public static final int SCAN_MODE_LOW_LATENCY = 2;
+
+    private static final float MIN_DUTY_CYCLE = 0.1f;
+    private static final float MAX_DUTY_CYCLE = 1.0f;
+
+    interface Scanner {
+        void startScan(int scanMode);
+
+        void stopScan();
+    }
+
+    interface Clock {
+        long uptimeMillis();
+
+        void postDelayed(Runnable runnable, long delayMillis);
+
+        void removeCallbacks(Runnable runnable);
+    }
+
+    interface Listener {
+        /**
+         * Called whenever the state, scan mode or duty cycle changes.
+         */
+        void onScheduleChanged(ScanScheduler scheduler);
+    }
+
+    private final Scanner mScanner;
+    private final Clock mClock;
+    private Listener mListener;
+
+    private int mMode = MODE_CONTINUOUS;
+    private long mDurationMillis;
+    private long mWindowMillis = 5000;
+    private long mIntervalMillis = 10000;
+    private float mHighDiscoveryRate = 1.0f;
+    private float mLowDiscoveryRate = 0.1f;
+
+    private int mState = STATE_IDLE;
+    private int mScanMode = SCAN_MODE_BALANCED;
+    private float mDutyCycle;
+    private long mWindowStartMillis;
+    private float mDiscoveryRate;
+    private final AtomicInteger mDiscovered = new AtomicInteger();
+
+    public ScanScheduler(Scanner scanner, Clock clock) {
+        mScanner = scanner;
+        mClock = clock;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void setMode(int mode) {
+        mMode = mode;
+    }
+
+    /**
+     * Stops the whole scan after this long, 0 to scan until {@link #stop} is called.
+     */
+    public void setDurationMillis(long durationMillis) {
+        mDurationMillis = durationMillis;
+    }
+
+    /**
+     * How long to scan at the start of every interval in windowed mode.
+     */
+    public void setWindowMillis(long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    public void setIntervalMillis(long intervalMillis) {
+        mIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * New devices per second of scanning above which adaptive mode scans more, and below which
+     * it scans less.
+     */
+    public void setDiscoveryRates(float high, float low) {
+        mHighDiscoveryRate = high;
+        mLowDiscoveryRate = low;
+    }
+
+    public void start() {
+        stop();
+        mScanMode = mMode == MODE_ADAPTIVE ? SCAN_MODE_LOW_LATENCY : SCAN_MODE_BALANCED;
+        if (mMode == MODE_WINDOWED) {
+            mDutyCycle = Math.min((float) mWindowMillis / mIntervalMillis, MAX_DUTY_CYCLE);
+        } else {
+            // Adaptive mode starts at full speed and backs off once things settle down.
+            mDutyCycle = MAX_DUTY_CYCLE;
+        }
+        if (mDurationMillis > 0) {
+            mClock.postDelayed(mDurationEnd, mDurationMillis);
+        }
+        startWindow();
+    }
+
+    /**
+     * Stops scanning and cancels everything that was scheduled.
+     */
+    public void stop() {
+        mClock.removeCallbacks(mWindowStart);
+        mClock.removeCallbacks(mWindowEnd);
+        mClock.removeCallbacks(mDurationEnd);
+        if (mState == STATE_IDLE) {
+            return;
+        }
+        if (mState == STATE_SCANNING) {
+            mScanner.stopScan();
+        }
+        mState = STATE_IDLE;
+        notifyChanged();
+    }
+
+    /**
+     * Counts a device seen for the first time. Safe to call from any thread.
+     */
+    public void onDeviceDiscovered() {
+        mDiscovered.incrementAndGet();
+    }
+
+    public boolean isRunning() {
+        return mState != STATE_IDLE;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    public int getScanMode() {
+        return mScanMode;
+    }
+
+    /**
+     * Fraction of every interval spent scanning.
+     */
+    public float getDutyCycle() {
+        return mDutyCycle;
+    }
+
+    /**
+     * New devices per second of scanning during the last window.
+     */
+    public float getDiscoveryRate() {
+        return mDiscoveryRate;
+    }
+
+    private void startWindow() {
+        mDiscovered.set(0);
+        mWindowStartMillis = mClock.uptimeMillis();
+        if (mState != STATE_SCANNING) {
+            mScanner.startScan(mScanMode);
+            mState = STATE_SCANNING;
+        }
+        if (mMode != MODE_CONTINUOUS) {
+            mClock.postDelayed(mWindowEnd, windowLength());
+        }
+        notifyChanged();
+    }
+
+    private long windowLength() {
+        return Math.max((long) (mIntervalMillis * mDutyCycle), 1);
+    }
+
+    private final Runnable mWindowEnd = new Runnable() {
+        @Override
+        public void run() {
+            if (mState == STATE_IDLE) {
+                return;
+            }
+            long scannedMillis = Math.max(mClock.uptimeMillis() - mWindowStartMillis, 1);
+            mDiscoveryRate = mDiscovered.get() * 1000f / scannedMillis;
+            // The rest of the interval of the window that just ended, before adapt() changes the
+            // length of the next one.
+            long pauseMillis = mIntervalMillis - windowLength();
+            int scanMode = mScanMode;
+            if (mMode == MODE_ADAPTIVE) {
+                adapt();
+            }
+            if (mState == STATE_SCANNING && (pauseMillis > 0 || scanMode != mScanMode)) {
+                // The scan mode of a running scan can't be changed, so restart it as well.
+                mScanner.stopScan();
+                mState = STATE_PAUSED;
+            }
+            if (pauseMillis > 0) {
+                notifyChanged();
+                mClock.postDelayed(mWindowStart, pauseMillis);
+            } else {
+                startWindow();
+            }
+        }
+    };
+
+    private void adapt() {
+        if (mDiscoveryRate > mHighDiscoveryRate) {
+            mDutyCycle = Math.min(mDutyCycle * 2, MAX_DUTY_CYCLE);
+            mScanMode = SCAN_MODE_LOW_LATENCY;
+        } else if (mDiscoveryRate < mLowDiscoveryRate) {
+            mDutyCycle = Math.max(mDutyCycle / 2, MIN_DUTY_CYCLE);
+            mScanMode = SCAN_MODE_BALANCED;
+        }
+    }
+
+    private final Runnable mWindowStart = new Runnable() {
+        @Override
+        public void run() {
+            if (mState != STATE_IDLE) {
+                startWindow();
+            }
+        }
+    };
+
+    private final Runnable mDurationEnd = new Runnable() {
+        @Override
+        public void run() {
+            stop();
+        }
+    };
+
+    private void notifyChanged() {
+        if (mListener != null) {
+            mListener.onScheduleChanged(this);
+        }
+    }
+}
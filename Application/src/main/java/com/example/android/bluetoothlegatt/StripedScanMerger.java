@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link ScanMerger} that any number of threads can merge into at once.
+ *
+ * Devices are spread over stripes by a hash of their address, each stripe a ScanMerger of its
+ * own behind its own lock, so producers only wait for each other when their devices share a
+ * stripe. A snapshot holds every lock while it is taken, so it shows all stripes as of the same
+ * moment, and merges the stripes' orders into one.
+ *
+ * The capacity and number of summaries are split evenly between the stripes, so once a stripe
+ * is full the device dropped is the least recently seen of its stripe rather than of all
+ * devices.
+ */
+class StripedScanMerger<V extends ScanMerger.Sighting> {
+    private final ScanMerger<V>[] stripes;
+    private final ReentrantLock[] locks;
+    private final int shift;
+
+    /**
+     * @param stripeCount     Number of stripes, a power of two.
+     * @param capacity        Most devices kept over all stripes, see {@link DeviceRegistry}.
+     * @param timeToLiveNanos How long a device is kept after it was last seen.
+     * @param maxSummaries    Summaries kept of evicted devices, 0 to forget them.
+     */
+    @SuppressWarnings("unchecked")
+    public StripedScanMerger(int stripeCount, int capacity, long timeToLiveNanos,
+            int maxSummaries) {
+        if (stripeCount <= 0 || (stripeCount & (stripeCount - 1)) != 0) {
+            throw new IllegalArgumentException("Stripe count not a power of two: " + stripeCount);
+        }
+        stripes = (ScanMerger<V>[]) new ScanMerger<?>[stripeCount];
+        locks = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ScanMerger<>((capacity + stripeCount - 1) / stripeCount,
+                    timeToLiveNanos, (maxSummaries + stripeCount - 1) / stripeCount);
+            locks[i] = new ReentrantLock();
+        }
+        shift = 64 - Integer.numberOfTrailingZeros(stripeCount);
+    }
+
+    /**
+     * Sets the timestamp history of new tracks, see {@link ScanMerger#setTimestampHistory}.
+     * Like the other settings, must be set before anything is merged.
+     */
+    public void setTimestampHistory(int capacity, long maxAgeNanos) {
+        for (ScanMerger<V> stripe : stripes) {
+            stripe.setTimestampHistory(capacity, maxAgeNanos);
+        }
+    }
+
+    public void setIntervalMode(int intervalMode) {
+        for (ScanMerger<V> stripe : stripes) {
+            stripe.setIntervalMode(intervalMode);
+        }
+    }
+
+    public void setRssiMode(int rssiMode) {
+        for (ScanMerger<V> stripe : stripes) {
+            stripe.setRssiMode(rssiMode);
+        }
+    }
+
+    /**
+     * Locks the stripe of an address and returns it, for a caller that needs more than one
+     * call on the device to happen at once, e.g. to look at the previous sighting before
+     * merging the next. Every lock must be followed by an {@link #unlock} of the same address.
+     */
+    public ScanMerger<V> lock(long address) {
+        int stripe = stripeOf(address);
+        locks[stripe].lock();
+        return stripes[stripe];
+    }
+
+    public void unlock(long address) {
+        locks[stripeOf(address)].unlock();
+    }
+
+    /**
+     * Merges a sighting, see {@link ScanMerger#merge}. Safe to call from any thread.
+     */
+    public boolean merge(V sighting) {
+        long address = sighting.getAddress();
+        ScanMerger<V> stripe = lock(address);
+        try {
+            return stripe.merge(sighting);
+        } finally {
+            unlock(address);
+        }
+    }
+
+    public V get(long address) {
+        ScanMerger<V> stripe = lock(address);
+        try {
+            return stripe.get(address);
+        } finally {
+            unlock(address);
+        }
+    }
+
+    /**
+     * Evicts devices from every stripe in turn, see {@link ScanMerger#evict}.
+     */
+    public int evict(long nowNanos) {
+        int evicted = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].lock();
+            try {
+                evicted += stripes[i].evict(nowNanos);
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Returns a copy of the devices in address order.
+     */
+    public ArrayList<V> snapshot() {
+        return snapshot(ScanMerger.SORT_ADDRESS);
+    }
+
+    /**
+     * Returns a copy of the devices in the given order, as of one moment.
+     *
+     * @param sortOrder One of the ScanMerger SORT_ constants.
+     */
+    public ArrayList<V> snapshot(int sortOrder) {
+        lockAll();
+        try {
+            // Every stripe is already sorted, so only their heads need comparing.
+            int total = 0;
+            ArrayList<ArrayList<V>> sorted = new ArrayList<>(stripes.length);
+            for (ScanMerger<V> stripe : stripes) {
+                ArrayList<V> values = stripe.snapshot(sortOrder);
+                sorted.add(values);
+                total += values.size();
+            }
+            int[] next = new int[stripes.length];
+            long[] headKeys = new long[stripes.length];
+            for (int i = 0; i < stripes.length; i++) {
+                headKeys[i] = headKey(sortOrder, i, sorted.get(i), 0);
+            }
+            ArrayList<V> merged = new ArrayList<>(total);
+            for (int n = 0; n < total; n++) {
+                int min = -1;
+                for (int i = 0; i < stripes.length; i++) {
+                    if (next[i] == sorted.get(i).size()) {
+                        continue;
+                    }
+                    if (min < 0 || headKeys[i] < headKeys[min] || (headKeys[i] == headKeys[min]
+                            && sorted.get(i).get(next[i]).getAddress()
+                            < sorted.get(min).get(next[min]).getAddress())) {
+                        min = i;
+                    }
+                }
+                merged.add(sorted.get(min).get(next[min]++));
+                headKeys[min] = headKey(sortOrder, min, sorted.get(min), next[min]);
+            }
+            return merged;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    private long headKey(int sortOrder, int stripe, ArrayList<V> values, int position) {
+        return position < values.size()
+                ? stripes[stripe].keyOf(sortOrder, values.get(position)) : 0;
+    }
+
+    public int size() {
+        lockAll();
+        try {
+            int size = 0;
+            for (ScanMerger<V> stripe : stripes) {
+                size += stripe.size();
+            }
+            return size;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    public int getSummaryCount() {
+        lockAll();
+        try {
+            int count = 0;
+            for (ScanMerger<V> stripe : stripes) {
+                count += stripe.getSummaryCount();
+            }
+            return count;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    public long getExpiredCount() {
+        lockAll();
+        try {
+            long count = 0;
+            for (ScanMerger<V> stripe : stripes) {
+                count += stripe.getExpiredCount();
+            }
+            return count;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    public long getOverflowCount() {
+        lockAll();
+        try {
+            long count = 0;
+            for (ScanMerger<V> stripe : stripes) {
+                count += stripe.getOverflowCount();
+            }
+            return count;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    public void clear() {
+        lockAll();
+        try {
+            for (ScanMerger<V> stripe : stripes) {
+                stripe.clear();
+            }
+        } finally {
+            unlockAll();
+        }
+    }
+
+    private int stripeOf(long address) {
+        // The high bits of a Fibonacci hash. AddressTable indexes by the bits below them, so the
+        // addresses of one stripe still spread over its whole table.
+        return stripes.length == 1 ? 0 : (int) ((address * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    // Always in the same order, so two threads locking everything can't deadlock.
+    private void lockAll() {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Bounded history of advertisement timestamps for one device.
+ *
+ * Only the last {@code capacity} timestamps are kept, and of those only the ones no older than
+ * {@code maxAgeNanos} relative to the newest one. Appending never allocates. The packet count
+ * and the first and last timestamps are kept by {@link DeviceTracks}, not here.
+ */
+class TimestampRingBuffer {
+    private final long[] buffer;
+    private final long maxAgeNanos;
+    // Index of the oldest timestamp in the buffer.
+    private int head;
+    private int size;
+
+    /**
+     * @param capacity    Maximum number of timestamps kept, at least 1.
+     * @param maxAgeNanos Timestamps older than this relative to the newest one are dropped,
+     *                    0 to only bound by capacity.
+     */
+    public TimestampRingBuffer(int capacity, long maxAgeNanos) {
+        buffer = new long[capacity];
+        this.maxAgeNanos = maxAgeNanos;
+    }
+
+    /**
+     * Appends a timestamp. Timestamps arriving out of order are moved into place, so the
+     * buffer always reads in ascending order.
+     */
+    public void add(long timestampNanos) {
+        int capacity = buffer.length;
+        if (size == capacity) {
+            if (timestampNanos <= buffer[head]) {
+                // Older than anything in a full window, it would be dropped right away.
+                return;
+            }
+            head = (head + 1) % capacity;
+            size--;
+        }
+        int i = size;
+        while (i > 0 && buffer[(head + i - 1) % capacity] > timestampNanos) {
+            buffer[(head + i) % capacity] = buffer[(head + i - 1) % capacity];
+            i--;
+        }
+        buffer[(head + i) % capacity] = timestampNanos;
+        size++;
+
+        if (maxAgeNanos > 0) {
+            long oldest = buffer[(head + size - 1) % capacity] - maxAgeNanos;
+            while (size > 1 && buffer[head] < oldest) {
+                head = (head + 1) % capacity;
+                size--;
+            }
+        }
+    }
+
+    /**
+     * Number of timestamps currently in the window.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the timestamp at this position in the window, 0 being the oldest.
+     */
+    public long get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return buffer[(head + index) % buffer.length];
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+}
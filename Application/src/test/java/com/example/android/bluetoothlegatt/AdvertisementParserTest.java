@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AdvertisementParserTest {
+    private final AdvertisementParser parser = new AdvertisementParser();
+
+    // Captured advertisements, the same as in the benchmarks.
+
+    @Test
+    public void iBeacon() {
+        parser.parse(bytes("0201061AFF4C000215E2C56DB5DFFB48D2B060D0F5A71096E000010002C5"));
+        assertEquals(2, parser.size());
+        assertEquals(0x06, parser.getAdvertiseFlags());
+        assertEquals(AdvertisementParser.TX_POWER_UNKNOWN, parser.getTxPowerLevel());
+        assertEquals(1, parser.nextManufacturerData(0));
+        assertEquals(-1, parser.nextManufacturerData(2));
+        assertEquals(0x004C, parser.getFirstManufacturerId());
+        assertEquals(7, parser.getManufacturerDataOffset(1));
+        assertEquals(23, parser.getManufacturerDataLength(1));
+        assertNull(parser.getLocalName());
+    }
+
+    @Test
+    public void eddystoneUrl() {
+        parser.parse(bytes("0201060303AAFE0E16AAFE10EE036578616D706C6507"));
+        assertEquals(3, parser.size());
+        assertEquals(1, parser.getServiceUuid16Count());
+        assertEquals(0xFEAA, parser.getServiceUuid16(0));
+        assertTrue(parser.hasServiceUuid(uuid16(0xFEAA), AdvertisementParser.BASE_UUID_LSB));
+        assertEquals(2, parser.nextServiceData16(0));
+        assertEquals(2, parser.indexOfServiceData(uuid16(0xFEAA),
+                AdvertisementParser.BASE_UUID_LSB));
+        assertEquals(2, parser.getServiceDataUuidLength(2));
+        assertEquals(-1, parser.getFirstManufacturerId());
+    }
+
+    @Test
+    public void named() {
+        parser.parse(bytes("02010606095761746368020AF91107FB349B5F80000080001000000D180000"));
+        assertEquals(4, parser.size());
+        assertEquals("Watch", parser.getLocalName());
+        assertEquals(-7, parser.getTxPowerLevel());
+        assertEquals(0, parser.getServiceUuid16Count());
+        assertEquals(1, parser.getServiceUuid128Count());
+        UUID heartRate = UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+        assertEquals(heartRate.getMostSignificantBits(), parser.getServiceUuid128Msb(0));
+        assertEquals(heartRate.getLeastSignificantBits(), parser.getServiceUuid128Lsb(0));
+        // The 128-bit form of a 16-bit UUID still matches it.
+        assertTrue(parser.hasServiceUuid(uuid16(0x180D), AdvertisementParser.BASE_UUID_LSB));
+    }
+
+    @Test
+    public void nullAndEmpty() {
+        parser.parse(null);
+        assertEquals(0, parser.size());
+        assertNull(parser.getBytes());
+        parser.parse(new byte[0]);
+        assertEquals(0, parser.size());
+        assertEquals(-1, parser.getAdvertiseFlags());
+        assertEquals(AdvertisementParser.TX_POWER_UNKNOWN, parser.getTxPowerLevel());
+        assertNull(parser.getLocalName());
+        assertEquals(0, parser.getServiceUuid16Count());
+    }
+
+    @Test
+    public void parseDoesNotCopy() {
+        byte[] bytes = bytes("020106");
+        parser.parse(bytes);
+        assertSame(bytes, parser.getBytes());
+        assertEquals(2, parser.offset(0));
+        assertEquals(1, parser.length(0));
+        assertEquals(AdvertisementParser.TYPE_FLAGS, parser.type(0));
+    }
+
+    @Test
+    public void truncatedStructureEndsTheWalk() {
+        // The manufacturer data claims five bytes but only three are left.
+        parser.parse(bytes("02010605FF4C00"));
+        assertEquals(1, parser.size());
+        assertEquals(0x06, parser.getAdvertiseFlags());
+        assertEquals(-1, parser.getFirstManufacturerId());
+    }
+
+    @Test
+    public void lengthPastTheEndByOne() {
+        parser.parse(bytes("0201060509414243"));
+        assertEquals(1, parser.size());
+        assertNull(parser.getLocalName());
+    }
+
+    @Test
+    public void zeroLengthEndsTheWalk() {
+        // The padding of a legacy advertisement, with what looks like a structure after it.
+        parser.parse(bytes("0201060000000303AAFE"));
+        assertEquals(1, parser.size());
+        assertEquals(0, parser.getServiceUuid16Count());
+    }
+
+    @Test
+    public void structuresWithoutData() {
+        parser.parse(bytes("0101010A0109"));
+        assertEquals(3, parser.size());
+        assertEquals(-1, parser.getAdvertiseFlags());
+        assertEquals(AdvertisementParser.TX_POWER_UNKNOWN, parser.getTxPowerLevel());
+        assertEquals("", parser.getLocalName());
+    }
+
+    @Test
+    public void manufacturerDataTooShortForCompanyId() {
+        parser.parse(bytes("02FF4C05FF4C000102"));
+        assertEquals(2, parser.size());
+        assertEquals(1, parser.nextManufacturerData(0));
+        assertEquals(0x004C, parser.getFirstManufacturerId());
+        assertEquals(2, parser.getManufacturerDataLength(1));
+        assertEquals(0, parser.getManufacturerDataLength(0));
+    }
+
+    @Test
+    public void serviceUuids16() {
+        // An incomplete list, then a complete one with a stray odd byte.
+        parser.parse(bytes("05020D180F1804030A18FF"));
+        assertEquals(3, parser.getServiceUuid16Count());
+        assertEquals(0x180D, parser.getServiceUuid16(0));
+        assertEquals(0x180F, parser.getServiceUuid16(1));
+        assertEquals(0x180A, parser.getServiceUuid16(2));
+        assertTrue(parser.hasServiceUuid(uuid16(0x180F), AdvertisementParser.BASE_UUID_LSB));
+        assertFalse(parser.hasServiceUuid(uuid16(0x1810), AdvertisementParser.BASE_UUID_LSB));
+        assertFalse(parser.hasServiceUuid(uuid16(0x180F), 0));
+    }
+
+    @Test
+    public void solicitationUuidsAreNotServiceUuids() {
+        parser.parse(bytes("0314AAFE"));
+        assertEquals("List of 16-bit Service Solicitation UUIDs", parser.typeName(0));
+        assertEquals(0, parser.getServiceUuid16Count());
+        assertFalse(parser.hasServiceUuid(uuid16(0xFEAA), AdvertisementParser.BASE_UUID_LSB));
+    }
+
+    @Test
+    public void typeNames() {
+        parser.parse(bytes("02010606095761746368020AF91107FB349B5F80000080001000000D180000"));
+        assertEquals("Flags", parser.typeName(0));
+        assertEquals("Complete Local Name", parser.typeName(1));
+        assertEquals("Tx Power Level", parser.typeName(2));
+        assertEquals("Complete List of 128-bit Service UUIDs", parser.typeName(3));
+        assertEquals("Manufacturer Specific Data", AdTypes.name((byte) 0xFF));
+        assertEquals("Unknown 0x0B", AdTypes.name(0x0B));
+        for (int type = 0; type < 256; type++) {
+            assertSame(AdTypes.name(type), AdTypes.name(type));
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void serviceUuid16PastTheEnd() {
+        parser.parse(bytes("05020D180F18"));
+        parser.getServiceUuid16(2);
+    }
+
+    @Test
+    public void serviceUuids32() {
+        parser.parse(bytes("0905785634120D180000"));
+        assertEquals(2, parser.getServiceUuid32Count());
+        assertEquals(0x12345678L, parser.getServiceUuid32(0));
+        assertEquals(0x180DL, parser.getServiceUuid32(1));
+        assertEquals(0, parser.getServiceUuid16Count());
+        assertTrue(parser.hasServiceUuid(uuid16(0x12345678L), AdvertisementParser.BASE_UUID_LSB));
+        assertTrue(parser.hasServiceUuid(uuid16(0x180D), AdvertisementParser.BASE_UUID_LSB));
+    }
+
+    @Test
+    public void unsigned32BitUuid() {
+        parser.parse(bytes("0504FFFFFFFF"));
+        assertEquals(0xFFFFFFFFL, parser.getServiceUuid32(0));
+    }
+
+    @Test
+    public void serviceUuids128() {
+        UUID uart = UUID.fromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E");
+        UUID heartRate = UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+        parser.parse(bytes("1106" + "9ECADC240EE5A9E093F3A3B50100406E"
+                + "1107" + "FB349B5F80000080001000000D180000"));
+        assertEquals(2, parser.getServiceUuid128Count());
+        assertEquals(uart.getMostSignificantBits(), parser.getServiceUuid128Msb(0));
+        assertEquals(uart.getLeastSignificantBits(), parser.getServiceUuid128Lsb(0));
+        assertEquals(heartRate.getMostSignificantBits(), parser.getServiceUuid128Msb(1));
+        assertEquals(heartRate.getLeastSignificantBits(), parser.getServiceUuid128Lsb(1));
+        assertTrue(parser.hasServiceUuid(uart.getMostSignificantBits(),
+                uart.getLeastSignificantBits()));
+        assertFalse(parser.hasServiceUuid(uart.getMostSignificantBits(),
+                heartRate.getLeastSignificantBits()));
+    }
+
+    @Test
+    public void serviceData() {
+        UUID uart = UUID.fromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E");
+        parser.parse(bytes("0720785634120102"
+                + "1221" + "9ECADC240EE5A9E093F3A3B50100406E" + "AA"));
+        assertEquals(0, parser.indexOfServiceData(uuid16(0x12345678L),
+                AdvertisementParser.BASE_UUID_LSB));
+        assertEquals(1, parser.indexOfServiceData(uart.getMostSignificantBits(),
+                uart.getLeastSignificantBits()));
+        assertEquals(-1, parser.nextServiceData16(0));
+        assertEquals(4, parser.getServiceDataUuidLength(0));
+        assertEquals(16, parser.getServiceDataUuidLength(1));
+    }
+
+    @Test
+    public void txPowerLevel() {
+        parser.parse(bytes("020A04"));
+        assertEquals(4, parser.getTxPowerLevel());
+        parser.parse(bytes("020A80"));
+        assertEquals(-128, parser.getTxPowerLevel());
+        parser.parse(bytes("020A00"));
+        assertEquals(0, parser.getTxPowerLevel());
+    }
+
+    @Test
+    public void localName() {
+        parser.parse(bytes("050857617463"));
+        assertEquals("Watc", parser.getLocalName());
+        // The complete name wins over the shortened one, wherever it is.
+        parser.parse(bytes("050857617463" + "06095761746368"));
+        assertEquals(1, parser.getLocalNameIndex());
+        assertEquals("Watch", parser.getLocalName());
+        parser.parse(bytes("0709436166C3A921"));
+        assertEquals("Caf\u00E9!", parser.getLocalName());
+    }
+
+    @Test
+    public void extendedAdvertisement() {
+        // 1650 bytes of the smallest structures, more than a legacy advertisement could hold.
+        byte[] bytes = new byte[1650];
+        for (int i = 0; i < bytes.length; i += 2) {
+            bytes[i] = 1;
+            bytes[i + 1] = (byte) AdvertisementParser.TYPE_SERVICE_DATA_16;
+        }
+        bytes[bytes.length - 1] = AdvertisementParser.TYPE_LOCAL_NAME_COMPLETE;
+        parser.parse(bytes);
+        assertEquals(825, parser.size());
+        assertEquals(824, parser.getLocalNameIndex());
+        assertEquals("", parser.getLocalName());
+    }
+
+    private static long uuid16(long shortUuid) {
+        return AdvertisementParser.BASE_UUID_MSB | shortUuid << 32;
+    }
+
+    private static byte[] bytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
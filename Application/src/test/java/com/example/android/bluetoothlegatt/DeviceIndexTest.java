@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeviceIndexTest {
+    @Test
+    public void ordersByKeyThenAddress() {
+        DeviceIndex index = new DeviceIndex();
+        index.update(0, 3, 5);
+        index.update(1, 1, 5);
+        index.update(2, 2, -1);
+        assertOrder(index, 2, 1, 0);
+        index.update(2, 2, 10);
+        assertOrder(index, 1, 0, 2);
+        assertEquals(10, index.getKey(2));
+        index.remove(1);
+        assertOrder(index, 0, 2);
+    }
+
+    @Test
+    public void matchesASortedList() {
+        final int slots = 300;
+        DeviceIndex index = new DeviceIndex();
+        final long[] addresses = new long[slots];
+        final long[] keys = new long[slots];
+        boolean[] indexed = new boolean[slots];
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            int slot = random.nextInt(slots);
+            if (random.nextInt(4) == 0) {
+                index.remove(slot);
+                indexed[slot] = false;
+            } else {
+                if (!indexed[slot]) {
+                    addresses[slot] = random.nextLong();
+                    indexed[slot] = true;
+                }
+                // Few distinct keys, so the address decides often.
+                keys[slot] = random.nextInt(20);
+                index.update(slot, addresses[slot], keys[slot]);
+            }
+            if (i % 1000 == 0) {
+                assertEquals(expected(indexed, addresses, keys), slots(index));
+            }
+        }
+        assertEquals(expected(indexed, addresses, keys), slots(index));
+        index.clear();
+        assertEquals(0, index.size());
+    }
+
+    private static ArrayList<Integer> expected(boolean[] indexed, final long[] addresses,
+            final long[] keys) {
+        ArrayList<Integer> expected = new ArrayList<>();
+        for (int slot = 0; slot < indexed.length; slot++) {
+            if (indexed[slot]) {
+                expected.add(slot);
+            }
+        }
+        Collections.sort(expected, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (keys[a] != keys[b]) {
+                    return keys[a] < keys[b] ? -1 : 1;
+                }
+                return Long.compare(addresses[a], addresses[b]);
+            }
+        });
+        return expected;
+    }
+
+    private static ArrayList<Integer> slots(DeviceIndex index) {
+        ArrayList<Integer> slots = new ArrayList<>();
+        for (int i = 0; i < index.size(); i++) {
+            slots.add(index.slotAt(i));
+        }
+        return slots;
+    }
+
+    private static void assertOrder(DeviceIndex index, Integer... slots) {
+        ArrayList<Integer> expected = new ArrayList<>();
+        Collections.addAll(expected, slots);
+        assertEquals(expected, slots(index));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DeviceSummariesTest {
+    @Test
+    public void removeReturnsWhatWasPut() {
+        DeviceSummaries summaries = new DeviceSummaries(10);
+        DeviceSummary a = summary();
+        DeviceSummary b = summary();
+        summaries.put(0xC0FFEE000001L, a);
+        summaries.put(0xC0FFEE000002L, b);
+        assertEquals(2, summaries.size());
+        assertSame(b, summaries.remove(0xC0FFEE000002L));
+        assertNull(summaries.remove(0xC0FFEE000002L));
+        assertSame(a, summaries.remove(0xC0FFEE000001L));
+        assertEquals(0, summaries.size());
+    }
+
+    @Test
+    public void dropsTheOldestLikeALinkedHashMap() {
+        final int maxSize = 100;
+        LinkedHashMap<Long, DeviceSummary> expected = new LinkedHashMap<Long, DeviceSummary>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, DeviceSummary> eldest) {
+                return size() > maxSize;
+            }
+        };
+        DeviceSummaries summaries = new DeviceSummaries(maxSize);
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long address = random.nextInt(300);
+            if (random.nextInt(3) == 0) {
+                assertSame(expected.remove(address), summaries.remove(address));
+            } else {
+                DeviceSummary summary = summary();
+                expected.put(address, summary);
+                summaries.put(address, summary);
+            }
+            assertEquals(expected.size(), summaries.size());
+        }
+        for (long address = 0; address < 300; address++) {
+            assertSame(expected.remove(address), summaries.remove(address));
+        }
+    }
+
+    @Test
+    public void replacingKeepsThePlaceInLine() {
+        DeviceSummaries summaries = new DeviceSummaries(2);
+        summaries.put(1, summary());
+        summaries.put(2, summary());
+        DeviceSummary replaced = summary();
+        summaries.put(1, replaced);
+        summaries.put(3, summary());
+        assertNull(summaries.remove(1));
+        assertEquals(2, summaries.size());
+    }
+
+    @Test
+    public void keepsNoneWithoutRoom() {
+        DeviceSummaries summaries = new DeviceSummaries(0);
+        summaries.put(1, summary());
+        assertEquals(0, summaries.size());
+        assertNull(summaries.remove(1));
+    }
+
+    @Test
+    public void clear() {
+        DeviceSummaries summaries = new DeviceSummaries(10);
+        summaries.put(1, summary());
+        summaries.clear();
+        assertEquals(0, summaries.size());
+        assertNull(summaries.remove(1));
+        summaries.put(2, summary());
+        assertEquals(1, summaries.size());
+    }
+
+    private static DeviceSummary summary() {
+        return new DeviceSummary();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanFilterProfileTest {
+    private static final String TEXT = "address=C0:FF:EE:00:00:01\n"
+            + "manufacturer=0x004C;data=0215;mask=FFFF\n"
+            + "service=0000feaa-0000-1000-8000-00805f9b34fb\n"
+            + "serviceDataUuid=0000fe2c-0000-1000-8000-00805f9b34fb;serviceData=00;"
+            + "serviceDataMask=00\n";
+
+    @Test
+    public void savedTextReadsBack() {
+        ScanFilterProfile profile = ScanFilterProfile.parse("profile", TEXT);
+        assertEquals(4, profile.getRules().size());
+        assertEquals(TEXT, profile.toString());
+        assertEquals(TEXT, ScanFilterProfile.parse("profile", profile.toString()).toString());
+    }
+
+    @Test
+    public void emptyTextHasNoRules() {
+        assertTrue(ScanFilterProfile.parse("profile", "\n  \n").getRules().isEmpty());
+    }
+
+    @Test
+    public void matchesMaskedManufacturerData() {
+        ScanFilterProfile profile = ScanFilterProfile.parse("profile",
+                "manufacturer=0x004C;data=0215;mask=FF00");
+        AdvertisementParser parser = new AdvertisementParser();
+        // An iBeacon, then the same with another second byte, then another company.
+        parser.parse(new byte[] {6, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15, 0x01});
+        assertTrue(profile.matches(0, parser));
+        parser.parse(new byte[] {6, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x16, 0x01});
+        assertTrue(profile.matches(0, parser));
+        parser.parse(new byte[] {6, (byte) 0xFF, 0x06, 0x00, 0x02, 0x15, 0x01});
+        assertFalse(profile.matches(0, parser));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maskLongerThanData() {
+        ScanFilterProfile.parse("profile", "manufacturer=0x004C;data=02;mask=FFFF");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maskShorterThanData() {
+        ScanFilterProfile.parse("profile", "manufacturer=0x004C;data=0215;mask=FF");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maskWithoutData() {
+        ScanFilterProfile.parse("profile", "manufacturer=0x004C;mask=FFFF");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void serviceDataMaskWithoutServiceData() {
+        ScanFilterProfile.parse("profile",
+                "serviceDataUuid=0000FE2C-0000-1000-8000-00805F9B34FB;serviceDataMask=00");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void serviceDataMaskOfOtherLength() {
+        ScanFilterProfile.parse("profile", "serviceDataUuid=0000FE2C-0000-1000-8000-00805F9B34FB;"
+                + "serviceData=0011;serviceDataMask=00");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dataWithoutManufacturer() {
+        ScanFilterProfile.parse("profile", "data=0215");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void serviceDataWithoutUuid() {
+        ScanFilterProfile.parse("profile", "serviceData=00");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownField() {
+        ScanFilterProfile.parse("profile", "name=Watch");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedAddress() {
+        ScanFilterProfile.parse("profile", "address=C0:FF:EE");
+    }
+}
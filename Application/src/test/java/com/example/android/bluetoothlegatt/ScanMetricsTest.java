@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScanMetricsTest {
+    private long queueDepth;
+
+    @Test
+    public void gaugesAreReadWhenSampled() {
+        ScanMetrics metrics = new ScanMetrics();
+        metrics.setGauge(ScanMetrics.QUEUE_DEPTH, new ScanMetrics.Gauge() {
+            @Override
+            public long get() {
+                return queueDepth;
+            }
+        });
+        queueDepth = 5;
+        metrics.sample(1000000000L);
+        queueDepth = 9;
+        StringBuilder sb = new StringBuilder();
+        metrics.formatText(sb);
+        assertTrue(sb.toString(), sb.toString().contains("queue 5, pending updates 0"));
+
+        metrics.sample(2000000000L);
+        sb.setLength(0);
+        metrics.formatCsv(sb);
+        String[] values = sb.toString().trim().split(",");
+        assertEquals("9", values[6]);
+    }
+
+    @Test
+    public void csvMatchesHeader() {
+        ScanMetrics metrics = new ScanMetrics();
+        metrics.onIngested(100, 5000000);
+        metrics.record(ScanMetrics.MERGE_LATENCY, 2000000);
+        metrics.sample(1000000000L);
+        StringBuilder sb = new StringBuilder();
+        metrics.formatCsv(sb);
+        assertEquals(ScanMetrics.CSV_HEADER.split(",").length,
+                sb.toString().trim().split(",").length);
+    }
+}
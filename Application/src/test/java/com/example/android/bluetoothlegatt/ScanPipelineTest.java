@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScanPipelineTest {
+    private static final int PRODUCERS = 4;
+    private static final int DEVICES = 32;
+    private static final int ROUNDS = 200;
+    // Flags, general discoverable.
+    private static final byte[] ADVERTISEMENT = {0x02, 0x01, 0x06};
+
+    private StripedScanMerger<ScanPipeline.Sighting> merger;
+    private ScanPipeline<ScanPipeline.Sighting> pipeline;
+    private BatchDecoder batchDecoder;
+    private final AtomicInteger discovered = new AtomicInteger();
+    private final AtomicInteger filtered = new AtomicInteger();
+    private volatile boolean acceptAll = true;
+
+    @Before
+    public void setUp() {
+        merger = new StripedScanMerger<>(8, 1000, 0, 0);
+        batchDecoder = new BatchDecoder(1, ManufacturerDecoders.createDefault());
+        pipeline = new ScanPipeline<>(merger, batchDecoder, ManufacturerDecoders.createDefault(),
+                2.5f, new ScanPipeline.Callback<ScanPipeline.Sighting>() {
+                    @Override
+                    public boolean accept(ScanPipeline.Sighting sighting,
+                            AdvertisementParser parser) {
+                        return acceptAll;
+                    }
+
+                    @Override
+                    public void onFiltered(ScanPipeline.Sighting sighting) {
+                        filtered.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onDiscovered(ScanPipeline.Sighting sighting) {
+                        discovered.incrementAndGet();
+                    }
+
+                    @Override
+                    public void render(ScanPipeline.Sighting sighting, DeviceRenderModel model,
+                            DeviceRenderModel previous) {
+                        model.name = "Device";
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        batchDecoder.shutdown();
+    }
+
+    @Test
+    public void repeatedAdvertisementsAreNotDecodedAgain() {
+        ArrayList<ScanPipeline.Sighting> batch = new ArrayList<>();
+        batch.add(sighting(1, 1));
+        batch.add(sighting(1, 2));
+        batch.add(sighting(2, 3));
+        pipeline.decode(batch, null);
+        assertEquals(3, batch.size());
+        assertEquals(1, pipeline.getUnchangedCount());
+        pipeline.merge(batch);
+        assertEquals(2, discovered.get());
+
+        // Repeats the merged sighting of device 1.
+        batch.clear();
+        batch.add(sighting(1, 4));
+        pipeline.decode(batch, null);
+        assertEquals(2, pipeline.getUnchangedCount());
+    }
+
+    @Test
+    public void filteredSightingsAreDropped() {
+        acceptAll = false;
+        ArrayList<ScanPipeline.Sighting> batch = new ArrayList<>();
+        batch.add(sighting(1, 1));
+        // Repeats the one above, so is dropped without being decoded.
+        batch.add(sighting(1, 2));
+        pipeline.decode(batch, null);
+        assertEquals(0, batch.size());
+        assertEquals(2, filtered.get());
+    }
+
+    /**
+     * Merges the same devices from several threads at once while snapshots are taken, then
+     * has every device merged once more by a single producer, so its last sighting is known.
+     */
+    @Test
+    public void concurrentMergesLoseNothingAndSnapshotsOnlySeeRows() throws Exception {
+        final CyclicBarrier lastRound = new CyclicBarrier(PRODUCERS);
+        final AtomicBoolean merging = new AtomicBoolean(true);
+        final AtomicInteger snapshots = new AtomicInteger();
+        final AtomicInteger withoutRow = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS + 1);
+        try {
+            ArrayList<Future<Void>> producers = new ArrayList<>();
+            for (int i = 0; i < PRODUCERS; i++) {
+                final int producer = i;
+                producers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        ArrayList<ScanPipeline.Sighting> batch = new ArrayList<>();
+                        for (int round = 0; round < ROUNDS; round++) {
+                            for (int device = 0; device < DEVICES; device++) {
+                                batch.add(sighting(device, timestampOf(round, producer)));
+                            }
+                            pipeline.merge(batch);
+                            batch.clear();
+                        }
+                        lastRound.await();
+                        for (int device = producer; device < DEVICES; device += PRODUCERS) {
+                            batch.add(sighting(device, lastTimestamp()));
+                        }
+                        pipeline.merge(batch);
+                        return null;
+                    }
+                }));
+            }
+            Future<Void> snapshotter = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    int sortOrder = 0;
+                    while (merging.get()) {
+                        ArrayList<ScanPipeline.Sighting> snapshot = merger.snapshot(sortOrder);
+                        for (int i = 0; i < snapshot.size(); i++) {
+                            if (snapshot.get(i).getRenderModel() == null) {
+                                withoutRow.incrementAndGet();
+                            }
+                        }
+                        snapshots.incrementAndGet();
+                        sortOrder = (sortOrder + 1) % (ScanMerger.SORT_COMPANY + 1);
+                    }
+                    return null;
+                }
+            });
+            for (Future<Void> producer : producers) {
+                producer.get();
+            }
+            merging.set(false);
+            snapshotter.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(snapshots.get() > 0);
+        assertEquals(0, withoutRow.get());
+        assertEquals(DEVICES, merger.size());
+        assertEquals(DEVICES, discovered.get());
+        for (int device = 0; device < DEVICES; device++) {
+            ScanPipeline.Sighting sighting = merger.get(device);
+            ScanMerger<ScanPipeline.Sighting> stripe = merger.lock(device);
+            try {
+                DeviceTracks tracks = stripe.getTracks();
+                int slot = stripe.slotOf(device);
+                assertEquals(PRODUCERS * ROUNDS + 1, tracks.getCount(slot));
+                assertEquals(lastTimestamp(), sighting.getTimestampNanos());
+                assertEquals(lastTimestamp(), tracks.getLastTimestampNanos(slot));
+                // Built under the same lock as the last merge, so it shows the final count.
+                DeviceRenderModel model = sighting.getRenderModel();
+                assertNotNull(model);
+                assertEquals(DeviceFormatter.packetsReceived(tracks.getCount(slot),
+                        tracks.getUnchangedCount(slot)).toString(),
+                        model.packetsReceived.toString());
+            } finally {
+                merger.unlock(device);
+            }
+        }
+    }
+
+    private static long timestampOf(int round, int producer) {
+        return 1 + round * PRODUCERS + producer;
+    }
+
+    private static long lastTimestamp() {
+        return timestampOf(ROUNDS, 0);
+    }
+
+    private static ScanPipeline.Sighting sighting(long address, long timestampNanos) {
+        return new ScanPipeline.Sighting(address, timestampNanos, -60, true, ADVERTISEMENT);
+    }
+}
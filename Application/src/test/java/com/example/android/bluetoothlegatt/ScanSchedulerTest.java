@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanSchedulerTest {
+    private FakeClock clock;
+    private FakeScanner scanner;
+    private ScanScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        scanner = new FakeScanner();
+        scheduler = new ScanScheduler(scanner, clock);
+        scheduler.setWindowMillis(2000);
+        scheduler.setIntervalMillis(10000);
+        scheduler.setDiscoveryRates(1.0f, 0.1f);
+    }
+
+    @Test
+    public void continuousScansForTheDuration() {
+        scheduler.setDurationMillis(30000);
+        scheduler.start();
+        assertEquals(ScanScheduler.STATE_SCANNING, scheduler.getState());
+        scanner.assertCalls("start " + ScanScheduler.SCAN_MODE_BALANCED);
+
+        clock.advance(29999);
+        assertTrue(scheduler.isRunning());
+        scanner.assertCalls();
+
+        clock.advance(1);
+        assertEquals(ScanScheduler.STATE_IDLE, scheduler.getState());
+        scanner.assertCalls("stop");
+        assertEquals(0, clock.pendingCount());
+    }
+
+    @Test
+    public void windowedScansAtTheStartOfEveryInterval() {
+        scheduler.setMode(ScanScheduler.MODE_WINDOWED);
+        scheduler.start();
+        assertEquals(0.2f, scheduler.getDutyCycle(), 0);
+        scanner.assertCalls("start " + ScanScheduler.SCAN_MODE_BALANCED);
+
+        clock.advance(1999);
+        assertEquals(ScanScheduler.STATE_SCANNING, scheduler.getState());
+        clock.advance(1);
+        assertEquals(ScanScheduler.STATE_PAUSED, scheduler.getState());
+        scanner.assertCalls("stop");
+
+        clock.advance(7999);
+        assertEquals(ScanScheduler.STATE_PAUSED, scheduler.getState());
+        clock.advance(1);
+        assertEquals(ScanScheduler.STATE_SCANNING, scheduler.getState());
+        scanner.assertCalls("start " + ScanScheduler.SCAN_MODE_BALANCED);
+
+        clock.advance(2000);
+        assertEquals(ScanScheduler.STATE_PAUSED, scheduler.getState());
+        scanner.assertCalls("stop");
+    }
+
+    @Test
+    public void windowedWithoutPauseKeepsScanning() {
+        scheduler.setMode(ScanScheduler.MODE_WINDOWED);
+        scheduler.setWindowMillis(10000);
+        scheduler.start();
+        scanner.assertCalls("start " + ScanScheduler.SCAN_MODE_BALANCED);
+
+        clock.advance(50000);
+        assertEquals(ScanScheduler.STATE_SCANNING, scheduler.getState());
+        scanner.assertCalls();
+    }
+
+    @Test
+    public void adaptiveNarrowsWhenNothingIsDiscovered() {
+        scheduler.setMode(ScanScheduler.MODE_ADAPTIVE);
+        scheduler.start();
+        assertEquals(1.0f, scheduler.getDutyCycle(), 0);
+        scanner.assertCalls("start " + ScanScheduler.SCAN_MODE_LOW_LATENCY);
+
+        // The first window took the whole interval, so the next one starts right away, only
+        // restarted for the new scan mode.
+        clock.advance(10000);
+        assertEquals(0.0f, scheduler.getDiscoveryRate(), 0);
+        assertEquals(0.5f, scheduler.getDutyCycle(), 0);
+        assertEquals(ScanScheduler.SCAN_MODE_BALANCED, scheduler.getScanMode());
+        assertEquals(ScanScheduler.STATE_SCANNING, scheduler.getState());
+        scanner.assertCalls("stop", "start " + ScanScheduler.SCAN_MODE_BALANCED);
+
+        // A 5 second window, then the other half of its interval paused.
+        clock.advance(5000);
+        assertEquals(0.25f, scheduler.getDutyCycle(), 0);
+        assertEquals(ScanScheduler.STATE_PAUSED, scheduler.getState());
+        scanner.assertCalls("stop");
+        clock.advance(4999);
+        assertEquals(ScanScheduler.STATE_PAUSED, scheduler.getState());
+        clock.advance(1);
+        assertEquals(ScanScheduler.STATE_SCANNING, scheduler.getState());
+        scanner.assertCalls("start " + ScanScheduler.SCAN_MODE_BALANCED);
+
+        // Never narrower than the minimum duty cycle.
+        clock.advance(100000);
+        assertEquals(0.1f, scheduler.getDutyCycle(), 0);
+    }
+
+    @Test
+    public void adaptiveWidensWhenManyAreDiscovered() {
+        scheduler.setMode(ScanScheduler.MODE_ADAPTIVE);
+        scheduler.start();
+        clock.advance(10000);
+        clock.advance(5000);
+        assertEquals(0.25f, scheduler.getDutyCycle(), 0);
+        clock.advance(5000);
+        scanner.assertCalls("start " + ScanScheduler.SCAN_MODE_LOW_LATENCY, "stop",
+                "start " + ScanScheduler.SCAN_MODE_BALANCED, "stop",
+                "start " + ScanScheduler.SCAN_MODE_BALANCED);
+
+        // 10 devices in a 2.5 second window.
+        for (int i = 0; i < 10; i++) {
+            scheduler.onDeviceDiscovered();
+        }
+        clock.advance(2500);
+        assertEquals(4.0f, scheduler.getDiscoveryRate(), 0);
+        assertEquals(0.5f, scheduler.getDutyCycle(), 0);
+        assertEquals(ScanScheduler.SCAN_MODE_LOW_LATENCY, scheduler.getScanMode());
+        assertEquals(ScanScheduler.STATE_PAUSED, scheduler.getState());
+        scanner.assertCalls("stop");
+
+        // The pause is what is left of the interval of the 2.5 second window, and the next
+        // window is the wider one.
+        clock.advance(7499);
+        assertEquals(ScanScheduler.STATE_PAUSED, scheduler.getState());
+        clock.advance(1);
+        assertEquals(ScanScheduler.STATE_SCANNING, scheduler.getState());
+        scanner.assertCalls("start " + ScanScheduler.SCAN_MODE_LOW_LATENCY);
+        clock.advance(4999);
+        assertEquals(ScanScheduler.STATE_SCANNING, scheduler.getState());
+        clock.advance(1);
+        assertEquals(ScanScheduler.STATE_PAUSED, scheduler.getState());
+    }
+
+    @Test
+    public void stopCancelsPendingCallbacks() {
+        scheduler.setMode(ScanScheduler.MODE_WINDOWED);
+        scheduler.setDurationMillis(60000);
+        scheduler.start();
+        clock.advance(500);
+        scheduler.stop();
+        assertFalse(scheduler.isRunning());
+        scanner.assertCalls("start " + ScanScheduler.SCAN_MODE_BALANCED, "stop");
+        assertEquals(0, clock.pendingCount());
+
+        clock.advance(100000);
+        scanner.assertCalls();
+    }
+
+    @Test
+    public void stopWhilePausedDoesNotStopTheScanAgain() {
+        scheduler.setMode(ScanScheduler.MODE_WINDOWED);
+        scheduler.start();
+        clock.advance(3000);
+        assertEquals(ScanScheduler.STATE_PAUSED, scheduler.getState());
+        scanner.assertCalls("start " + ScanScheduler.SCAN_MODE_BALANCED, "stop");
+
+        scheduler.stop();
+        assertEquals(ScanScheduler.STATE_IDLE, scheduler.getState());
+        scanner.assertCalls();
+        assertEquals(0, clock.pendingCount());
+        clock.advance(100000);
+        scanner.assertCalls();
+    }
+
+    @Test
+    public void restartCancelsTheEarlierSchedule() {
+        scheduler.setMode(ScanScheduler.MODE_WINDOWED);
+        scheduler.start();
+        clock.advance(1000);
+        scheduler.start();
+        scanner.assertCalls("start " + ScanScheduler.SCAN_MODE_BALANCED, "stop",
+                "start " + ScanScheduler.SCAN_MODE_BALANCED);
+
+        // The first window would have ended here.
+        clock.advance(1000);
+        assertEquals(ScanScheduler.STATE_SCANNING, scheduler.getState());
+        clock.advance(1000);
+        assertEquals(ScanScheduler.STATE_PAUSED, scheduler.getState());
+    }
+
+    /**
+     * Runs posted callbacks when time is advanced past them, in the order they are due.
+     */
+    private static class FakeClock implements ScanScheduler.Clock {
+        private long now;
+        private final List<Long> times = new ArrayList<>();
+        private final List<Runnable> runnables = new ArrayList<>();
+
+        @Override
+        public long uptimeMillis() {
+            return now;
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            times.add(now + delayMillis);
+            runnables.add(runnable);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            for (int i = runnables.size() - 1; i >= 0; i--) {
+                if (runnables.get(i) == runnable) {
+                    times.remove(i);
+                    runnables.remove(i);
+                }
+            }
+        }
+
+        int pendingCount() {
+            return runnables.size();
+        }
+
+        void advance(long millis) {
+            long end = now + millis;
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < times.size(); i++) {
+                    if (times.get(i) <= end && (next < 0 || times.get(i) < times.get(next))) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                now = times.remove(next);
+                runnables.remove(next).run();
+            }
+            now = end;
+        }
+    }
+
+    /**
+     * Records the calls made since the last check.
+     */
+    private static class FakeScanner implements ScanScheduler.Scanner {
+        private final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void startScan(int scanMode) {
+            calls.add("start " + scanMode);
+        }
+
+        @Override
+        public void stopScan() {
+            calls.add("stop");
+        }
+
+        void assertCalls(String... expected) {
+            assertEquals(Arrays.asList(expected), calls);
+            calls.clear();
+        }
+    }
+}
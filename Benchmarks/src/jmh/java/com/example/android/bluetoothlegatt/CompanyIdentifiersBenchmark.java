@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Company name lookups in the compiled table, mapped from the file the compileCompanyIdentifiers
+ * task writes. The path is passed in the companyIdentifiers system property.
+ */
+@State(Scope.Thread)
+public class CompanyIdentifiersBenchmark {
+    private static final int SIZE = 1024;
+    private static final int MASK = SIZE - 1;
+
+    private CompanyIdentifiers companyIdentifiers;
+    private final int[] companyIds = new int[SIZE];
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(System.getProperty("companyIdentifiers"), "r");
+        companyIdentifiers = CompanyIdentifiers.map(file.getChannel(), 0, file.length());
+        file.close();
+        // A few busy manufacturers and a long tail, plus identifiers that are not assigned.
+        Random random = new Random(42);
+        int[] common = {
+                ManufacturerDecoders.COMPANY_APPLE, ManufacturerDecoders.COMPANY_MICROSOFT,
+                0x0075, 0x00E0, 0x0059
+        };
+        for (int i = 0; i < SIZE; i++) {
+            companyIds[i] = random.nextBoolean()
+                    ? common[random.nextInt(common.length)] : random.nextInt(0x10000);
+        }
+    }
+
+    @Benchmark
+    public String get() {
+        return companyIdentifiers.get(companyIds[next++ & MASK]);
+    }
+}
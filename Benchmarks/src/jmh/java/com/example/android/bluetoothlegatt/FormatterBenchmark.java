@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * The per-row formatting helpers: hex dumps, address classification and advertising flags.
+ */
+@State(Scope.Thread)
+public class FormatterBenchmark {
+    private static final int SIZE = 1024;
+    private static final int MASK = SIZE - 1;
+
+    private final long[] addresses = new long[SIZE];
+    private final String[] addressStrings = new String[SIZE];
+    private final int[] flags = new int[SIZE];
+    private final byte[] scanRecord = SampleAdvertisements.IBEACON;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < SIZE; i++) {
+            addresses[i] = random.nextLong() & 0xFFFFFFFFFFFFL;
+            addressStrings[i] = DeviceFormatter.unpackAddress(addresses[i]);
+            // Mostly the two common values, sometimes no flags at all.
+            flags[i] = random.nextInt(8) == 0 ? -1 : random.nextBoolean() ? 0x06 : 0x1A;
+        }
+    }
+
+    @Benchmark
+    public String hex() {
+        return DeviceFormatter.hex(scanRecord, 0, scanRecord.length);
+    }
+
+    /**
+     * The usual String.format alternative, for comparison.
+     */
+    @Benchmark
+    public String hexStringFormat() {
+        StringBuilder sb = new StringBuilder(scanRecord.length * 2);
+        for (byte b : scanRecord) {
+            sb.append(String.format("%02X", b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public long packAddress() {
+        return DeviceFormatter.packAddress(addressStrings[next++ & MASK]);
+    }
+
+    @Benchmark
+    public int addressType() {
+        return DeviceFormatter.addressType(addresses[next++ & MASK]);
+    }
+
+    @Benchmark
+    public String addressBinary() {
+        return DeviceFormatter.addressBinary(addresses[next++ & MASK]);
+    }
+
+    @Benchmark
+    public String advertisingFlags() {
+        return DeviceFormatter.advertisingFlags(flags[next++ & MASK]);
+    }
+}
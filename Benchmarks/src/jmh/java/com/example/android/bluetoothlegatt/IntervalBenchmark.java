@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Cost of updating the advertising interval of a device after a packet: the whole-history
+ * calculation calcTimestampNanos did, against the incremental estimator.
+ */
+@State(Scope.Thread)
+public class IntervalBenchmark {
+    private static final long INTERVAL_NANOS = 100000000L;
+
+    @Param({"256", "10000"})
+    int historyLength;
+
+    private final Random random = new Random(42);
+    private TimestampRingBuffer history;
+    private IntervalEstimator smoothed;
+    private IntervalEstimator median;
+    private long nowNanos;
+
+    @Setup
+    public void setUp() {
+        history = new TimestampRingBuffer(historyLength, 0);
+        smoothed = new IntervalEstimator(IntervalEstimator.MODE_SMOOTHED);
+        median = new IntervalEstimator(IntervalEstimator.MODE_MEDIAN);
+        for (int i = 0; i < historyLength; i++) {
+            add(nextTimestamp());
+        }
+    }
+
+    /**
+     * Advertisements come every interval plus up to 10 ms of random delay, and one in ten is
+     * missed.
+     */
+    private long nextTimestamp() {
+        nowNanos += INTERVAL_NANOS + random.nextInt(10000000);
+        if (random.nextInt(10) == 0) {
+            nowNanos += INTERVAL_NANOS;
+        }
+        return nowNanos;
+    }
+
+    private void add(long timestampNanos) {
+        history.add(timestampNanos);
+        smoothed.add(timestampNanos);
+        median.add(timestampNanos);
+    }
+
+    @Benchmark
+    public long wholeHistory() {
+        history.add(nextTimestamp());
+        return IntervalEstimator.calculate(history);
+    }
+
+    @Benchmark
+    public long incrementalSmoothed() {
+        smoothed.add(nextTimestamp());
+        return smoothed.getIntervalNanos();
+    }
+
+    @Benchmark
+    public long incrementalMedian() {
+        median.add(nextTimestamp());
+        return median.getIntervalNanos();
+    }
+}
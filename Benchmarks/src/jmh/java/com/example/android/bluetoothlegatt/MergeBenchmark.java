@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Cost of merging one scan result into the devices seen so far, by ScanMerger and by the list
+ * walk and re-sort addScanDevice did before DeviceRegistry.
+ */
+@State(Scope.Thread)
+public class MergeBenchmark {
+    private static final long INTERVAL_NANOS = 100000000L;
+
+    @Param({"10", "100", "1000"})
+    int deviceCount;
+
+    @Param({"16", "256"})
+    int historyLength;
+
+    // The same addresses packed for the merger and as strings for the baseline.
+    private long[] addresses;
+    private String[] addressStrings;
+    private int next;
+    private long nowNanos;
+
+    private ScanMerger<Sighting> merger;
+    private ArrayList<BaselineDevice> baselineList;
+
+    static class Sighting implements ScanMerger.Sighting {
+        final long address;
+        final long timestampNanos;
+
+        Sighting(long address, long timestampNanos) {
+            this.address = address;
+            this.timestampNanos = timestampNanos;
+        }
+
+        @Override
+        public long getAddress() {
+            return address;
+        }
+
+        @Override
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+
+        @Override
+        public int getRssi() {
+            return -60;
+        }
+
+        @Override
+        public int getTxPowerLevel() {
+            return AdvertisementParser.TX_POWER_UNKNOWN;
+        }
+
+        @Override
+        public int getCompanyId() {
+            return -1;
+        }
+
+        @Override
+        public long getPayloadHash() {
+            return 0;
+        }
+    }
+
+    static class BaselineDevice {
+        String address;
+        int count;
+        ArrayList<Long> timestampNanos = new ArrayList<>();
+    }
+
+    private static final Comparator<BaselineDevice> BASELINE_ORDER =
+            new Comparator<BaselineDevice>() {
+                @Override
+                public int compare(BaselineDevice a, BaselineDevice b) {
+                    return a.address.compareTo(b.address);
+                }
+            };
+
+    @Setup
+    public void setUp() {
+        addresses = new long[deviceCount];
+        addressStrings = new String[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            // Spread over the whole address space so the sorted insert isn't always at the end.
+            addresses[i] = (i * 0x9E3779B97F4A7C15L) >>> 16;
+            addressStrings[i] = DeviceFormatter.unpackAddress(addresses[i]);
+        }
+        merger = new ScanMerger<>(0, 0, 0);
+        merger.setTimestampHistory(historyLength, 0);
+        baselineList = new ArrayList<>();
+        // Every device starts with a full history.
+        for (int n = 0; n < historyLength; n++) {
+            for (int i = 0; i < deviceCount; i++) {
+                nowNanos += INTERVAL_NANOS / deviceCount;
+                merger.merge(new Sighting(addresses[i], nowNanos));
+                baselineMerge(addressStrings[i], nowNanos);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean merge() {
+        nowNanos += INTERVAL_NANOS / deviceCount;
+        return merger.merge(new Sighting(addresses[nextIndex()], nowNanos));
+    }
+
+    @Benchmark
+    public int baseline() {
+        nowNanos += INTERVAL_NANOS / deviceCount;
+        return baselineMerge(addressStrings[nextIndex()], nowNanos);
+    }
+
+    private int nextIndex() {
+        int index = next;
+        next = next + 1 == deviceCount ? 0 : next + 1;
+        return index;
+    }
+
+    /**
+     * What addScanDevice used to do, except that the history is trimmed to the same length as
+     * the merger's, so both sides merge the same amount of history.
+     */
+    private int baselineMerge(String address, long timestampNanos) {
+        BaselineDevice obj = new BaselineDevice();
+        obj.address = address;
+        obj.count = 1;
+        obj.timestampNanos.add(timestampNanos);
+        for (int i = 0; i < baselineList.size(); i++) {
+            BaselineDevice existing = baselineList.get(i);
+            if (obj.address.equals(existing.address)) {
+                obj.count += existing.count;
+                ArrayList<Long> newList = new ArrayList<>(existing.timestampNanos);
+                newList.addAll(obj.timestampNanos);
+                if (newList.size() > historyLength) {
+                    newList.remove(0);
+                }
+                obj.timestampNanos = newList;
+                baselineList.set(i, obj);
+                Collections.sort(baselineList, BASELINE_ORDER);
+                return obj.count;
+            }
+        }
+        baselineList.add(obj);
+        Collections.sort(baselineList, BASELINE_ORDER);
+        return obj.count;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing a raw advertisement and reading what the ingestion thread and the row builder need
+ * from it.
+ */
+@State(Scope.Thread)
+public class ParserBenchmark {
+    @Param({"iBeacon", "eddystoneUrl", "microsoftCdp", "fastPair", "named"})
+    String sample;
+
+    private byte[] scanRecord;
+    private final AdvertisementParser parser = new AdvertisementParser();
+    private final ManufacturerFormatter formatter =
+            new ManufacturerFormatter(ManufacturerDecoders.createDefault());
+    private final DeviceRenderModel model = new DeviceRenderModel();
+
+    @Setup
+    public void setUp() {
+        scanRecord = SampleAdvertisements.get(sample);
+    }
+
+    /**
+     * What onIngest does for every packet.
+     */
+    @Benchmark
+    public int parseFlags() {
+        parser.parse(scanRecord);
+        return parser.getAdvertiseFlags();
+    }
+
+    /**
+     * What onIngest does for every packet instead, to tell whether it needs parsing at all.
+     */
+    @Benchmark
+    public long payloadHash() {
+        return XxHash64.hash(scanRecord, 0, scanRecord.length);
+    }
+
+    /**
+     * Everything the parser can tell about the packet.
+     */
+    @Benchmark
+    public int parseAll() {
+        parser.parse(scanRecord);
+        int result = parser.getAdvertiseFlags() + parser.getTxPowerLevel()
+                + parser.getServiceUuid16Count() + parser.getServiceUuid128Count();
+        for (int i = parser.nextManufacturerData(0); i >= 0;
+                i = parser.nextManufacturerData(i + 1)) {
+            result += parser.getManufacturerId(i);
+        }
+        String name = parser.getLocalName();
+        return name != null ? result + name.length() : result;
+    }
+
+    /**
+     * What the row builder does when the payload changed, without company names.
+     */
+    @Benchmark
+    public CharSequence decode() {
+        formatter.format(scanRecord, null, model);
+        return model.manufacturer;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Cost of finding a known device and updating its state, by address slot with the state in
+ * primitive arrays, by DeviceRegistry, and by the HashMap of ScanDevice objects keyed on the
+ * address string the app started out with.
+ */
+@State(Scope.Thread)
+public class RegistryBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int deviceCount;
+
+    // The same addresses packed for the table and registry and as strings for the baseline,
+    // visited in a shuffled order so consecutive lookups don't hit neighbouring entries.
+    private long[] addresses;
+    private String[] addressStrings;
+    private int next;
+    private long nowNanos;
+
+    private AddressTable table;
+    private long[] lastSeenNanos;
+    private int[] rssis;
+    private int[] counts;
+
+    private DeviceRegistry<BaselineDevice> registry;
+    private HashMap<String, BaselineDevice> baselineMap;
+
+    /**
+     * Stands in for the state ScanDevice keeps per device.
+     */
+    static class BaselineDevice {
+        String address;
+        long lastSeenNanos;
+        int rssi;
+        int count;
+    }
+
+    @Setup
+    public void setUp() {
+        addresses = new long[deviceCount];
+        addressStrings = new String[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            addresses[i] = (i * 0x9E3779B97F4A7C15L) >>> 16;
+        }
+        Random random = new Random(42);
+        for (int i = deviceCount - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long address = addresses[i];
+            addresses[i] = addresses[j];
+            addresses[j] = address;
+        }
+        table = new AddressTable(deviceCount);
+        lastSeenNanos = new long[deviceCount];
+        rssis = new int[deviceCount];
+        counts = new int[deviceCount];
+        registry = new DeviceRegistry<>(0, 0);
+        baselineMap = new HashMap<>();
+        for (int i = 0; i < deviceCount; i++) {
+            addressStrings[i] = DeviceFormatter.unpackAddress(addresses[i]);
+            BaselineDevice device = new BaselineDevice();
+            device.address = addressStrings[i];
+            table.add(addresses[i]);
+            registry.put(addresses[i], device, nowNanos);
+            baselineMap.put(addressStrings[i], device);
+        }
+    }
+
+    @Benchmark
+    public int table() {
+        int index = nextIndex();
+        int slot = table.get(addresses[index]);
+        lastSeenNanos[slot] = ++nowNanos;
+        rssis[slot] = -60;
+        return ++counts[slot];
+    }
+
+    @Benchmark
+    public int registry() {
+        int index = nextIndex();
+        BaselineDevice device = registry.get(addresses[index]);
+        registry.put(addresses[index], device, ++nowNanos);
+        device.rssi = -60;
+        return ++device.count;
+    }
+
+    @Benchmark
+    public int baseline() {
+        BaselineDevice device = baselineMap.get(addressStrings[nextIndex()]);
+        device.lastSeenNanos = ++nowNanos;
+        device.rssi = -60;
+        return ++device.count;
+    }
+
+    private int nextIndex() {
+        int index = next;
+        next = next + 1 == deviceCount ? 0 : next + 1;
+        return index;
+    }
+}
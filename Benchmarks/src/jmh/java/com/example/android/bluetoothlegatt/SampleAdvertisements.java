@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Raw scan records of the advertisement formats the scanner sees most, as returned by
+ * ScanRecord.getBytes().
+ */
+final class SampleAdvertisements {
+    // Flags, then an iBeacon in Apple manufacturer specific data.
+    static final byte[] IBEACON = bytes(
+            "0201061AFF4C000215E2C56DB5DFFB48D2B060D0F5A71096E000010002C5");
+    // Flags, Eddystone in the complete 16-bit service UUID list, then an Eddystone-URL frame.
+    static final byte[] EDDYSTONE_URL = bytes(
+            "0201060303AAFE0E16AAFE10EE036578616D706C6507");
+    // A Microsoft Connected Devices Platform beacon from a Windows 10 desktop.
+    static final byte[] MICROSOFT_CDP = bytes(
+            "1EFF0600010920022A6F3A4AF1D1CA0E2B5A0BA3A7F3E5B6C9E4A5E2A3B3C1");
+    // Flags and Fast Pair service data with a 24-bit model ID.
+    static final byte[] FAST_PAIR = bytes("02010603032CFE06162CFE0B6F1C");
+    // Flags, TX power, a 128-bit service UUID and the complete local name.
+    static final byte[] NAMED = bytes(
+            "02010606095761746368020AF91107FB349B5F80000080001000000D180000");
+
+    static final byte[][] ALL = {IBEACON, EDDYSTONE_URL, MICROSOFT_CDP, FAST_PAIR, NAMED};
+
+    private SampleAdvertisements() {
+    }
+
+    static byte[] get(String name) {
+        switch (name) {
+            case "iBeacon":
+                return IBEACON;
+            case "eddystoneUrl":
+                return EDDYSTONE_URL;
+            case "microsoftCdp":
+                return MICROSOFT_CDP;
+            case "fastPair":
+                return FAST_PAIR;
+            case "named":
+                return NAMED;
+            default:
+                throw new IllegalArgumentException("Unknown sample: " + name);
+        }
+    }
+
+    private static byte[] bytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
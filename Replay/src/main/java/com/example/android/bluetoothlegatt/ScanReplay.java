@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays capture logs through the same {@link ScanPipeline} the app runs on its ingestion
+ * thread, on a plain JVM.
+ *
+ * Records are grouped into batches by their capture timestamps, one batch per frame, the way
+ * the ingestor groups them on a busy device, and eviction runs on the capture clock. So the
+ * merged result only depends on the capture, not on the replay speed, and the checksum printed
+ * at the end is the same in every mode.
+ *
+ * With more than one decode thread, batches of at least {@link BatchDecoder#MIN_PARALLEL_BATCH}
+ * records are decoded in parallel before the merge, as the app does on multi-core devices.
+ *
+ * With more than one producer, every batch is merged by that many threads at once, each taking
+ * the records of its share of the addresses in capture order. The producers contend for the
+ * merger's lock stripes like concurrent scan callbacks would, and as long as the merger loses
+ * nothing to them and no device is dropped over capacity, which depends on the order devices
+ * reach their stripe, the counts, timestamps and checksum are the same as with one. No two
+ * producers share a device, so they never race for one; ScanPipelineTest covers that.
+ *
+ * <pre>
+ * ScanReplay [--mode realtime|accelerated|fast] [--speed N] [--frame-millis N]
+ *            [--decode-threads N] [--producers N] [--companies company_identifiers.bin]
+ *            [--filter profile.txt] capture.btcap...
+ * </pre>
+ */
+public class ScanReplay {
+    public static final int MODE_REAL_TIME = 0;
+    public static final int MODE_ACCELERATED = 1;
+    public static final int MODE_FAST = 2;
+
+    // Parse, filter, and decode the advertisements of the rows to be built.
+    public static final int STAGE_DECODE = 0;
+    // Merge, building the row of every device merged.
+    public static final int STAGE_MERGE = 1;
+    public static final int STAGE_EVICT = 2;
+    private static final String[] STAGE_NAMES = {"decode", "merge", "evict"};
+
+    // Same settings as DeviceScanActivity.
+    private static final int TIMESTAMP_HISTORY = 0;
+    private static final long TIMESTAMP_MAX_AGE_NANOS = 60L * 1000000000L;
+    private static final int INTERVAL_MODE = IntervalEstimator.MODE_SMOOTHED;
+    private static final int RSSI_MODE = RssiFilter.MODE_KALMAN;
+    private static final long DEVICE_TTL_NANOS = 5 * 60L * 1000000000L;
+    private static final int MAX_DEVICES = 1000;
+    private static final int MAX_DEVICE_SUMMARIES = 10000;
+    private static final int MERGER_STRIPES = 8;
+    private static final float PATH_LOSS_EXPONENT = 2.5f;
+
+    private final int mode;
+    private final float speed;
+    private final long frameNanos;
+    private final CompanyIdentifiers companyIdentifiers;
+    private final ScanFilterProfile filterProfile;
+    // Null with a single producer.
+    private final ExecutorService producerPool;
+    private final ArrayList<ArrayList<ScanPipeline.Sighting>> producerBatches =
+            new ArrayList<>();
+
+    private final StripedScanMerger<ScanPipeline.Sighting> merger = new StripedScanMerger<>(
+            MERGER_STRIPES, MAX_DEVICES, DEVICE_TTL_NANOS, MAX_DEVICE_SUMMARIES);
+    private final BatchDecoder batchDecoder;
+    private final ScanPipeline<ScanPipeline.Sighting> pipeline;
+    private final ArrayList<ScanPipeline.Sighting> batch = new ArrayList<>();
+
+    private long records;
+    private long filtered;
+    private long batches;
+    // Counted by every producer.
+    private final AtomicLong discovered = new AtomicLong();
+    // Per batch, the time spent in each stage.
+    private final long[][] stageNanos = new long[STAGE_NAMES.length][];
+    private final long[] stageTotalNanos = new long[STAGE_NAMES.length];
+
+    /**
+     * @param mode               One of the MODE constants.
+     * @param speed              How many times faster than captured to replay in accelerated
+     *                           mode.
+     * @param frameNanos         Capture time covered by one batch.
+     * @param companyIdentifiers The company names, or null.
+     * @param filterProfile      Applied to every record as the in-app fallback would, or null.
+     * @param decodeThreads      Threads decoding every large batch.
+     * @param producers          Threads merging every batch.
+     */
+    public ScanReplay(int mode, float speed, long frameNanos,
+            CompanyIdentifiers companyIdentifiers, ScanFilterProfile filterProfile,
+            int decodeThreads, int producers) {
+        this.mode = mode;
+        this.speed = mode == MODE_REAL_TIME ? 1 : speed;
+        this.frameNanos = frameNanos;
+        this.companyIdentifiers = companyIdentifiers;
+        this.filterProfile = filterProfile;
+        batchDecoder = new BatchDecoder(decodeThreads, ManufacturerDecoders.createDefault());
+        pipeline = new ScanPipeline<>(merger, batchDecoder, ManufacturerDecoders.createDefault(),
+                PATH_LOSS_EXPONENT, pipelineCallback);
+        producerPool = producers > 1 ? Executors.newFixedThreadPool(producers) : null;
+        for (int i = 0; i < producers; i++) {
+            producerBatches.add(new ArrayList<ScanPipeline.Sighting>());
+        }
+        merger.setTimestampHistory(TIMESTAMP_HISTORY, TIMESTAMP_MAX_AGE_NANOS);
+        merger.setIntervalMode(INTERVAL_MODE);
+        merger.setRssiMode(RSSI_MODE);
+        for (int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i] = new long[1024];
+        }
+    }
+
+    /**
+     * Replays the files one after the other, as one capture.
+     *
+     * @return Wall clock time spent, in nanoseconds.
+     */
+    public long replay(List<File> files) throws IOException, InterruptedException {
+        long wallStartNanos = System.nanoTime();
+        long captureStartNanos = Long.MIN_VALUE;
+        long batchStartNanos = Long.MIN_VALUE;
+        for (File file : files) {
+            CaptureLogReader reader = new CaptureLogReader(file);
+            while (reader.next()) {
+                long timestampNanos = reader.getTimestampNanos();
+                if (captureStartNanos == Long.MIN_VALUE) {
+                    captureStartNanos = timestampNanos;
+                }
+                if (batchStartNanos == Long.MIN_VALUE) {
+                    batchStartNanos = timestampNanos;
+                } else if (timestampNanos - batchStartNanos >= frameNanos) {
+                    processBatch(batchStartNanos);
+                    batchStartNanos = timestampNanos;
+                }
+                if (mode != MODE_FAST && batch.isEmpty()) {
+                    pace(wallStartNanos, timestampNanos - captureStartNanos);
+                }
+                byte[] scanRecordBytes = new byte[reader.getScanRecordLength()];
+                reader.getScanRecord(scanRecordBytes);
+                batch.add(new ScanPipeline.Sighting(reader.getAddress(), timestampNanos,
+                        reader.getRssi(), (reader.getFlags() & CaptureLog.FLAG_LEGACY) != 0,
+                        scanRecordBytes));
+                records++;
+            }
+        }
+        if (!batch.isEmpty()) {
+            processBatch(batchStartNanos);
+        }
+        batchDecoder.shutdown();
+        if (producerPool != null) {
+            producerPool.shutdown();
+        }
+        return System.nanoTime() - wallStartNanos;
+    }
+
+    private void pace(long wallStartNanos, long captureElapsedNanos) throws InterruptedException {
+        long waitNanos = wallStartNanos + (long) (captureElapsedNanos / speed) - System.nanoTime();
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+
+    private void processBatch(long batchStartNanos) throws InterruptedException {
+        long start = System.nanoTime();
+        // What onIngest does.
+        pipeline.decode(batch, companyIdentifiers);
+        long parsed = System.nanoTime();
+        if (producerPool == null) {
+            pipeline.merge(batch);
+        } else {
+            mergeConcurrently();
+        }
+        long merged = System.nanoTime();
+        pipeline.evict(batchStartNanos + frameNanos);
+        long evicted = System.nanoTime();
+        batch.clear();
+
+        if (batches == stageNanos[0].length) {
+            for (int i = 0; i < stageNanos.length; i++) {
+                stageNanos[i] = Arrays.copyOf(stageNanos[i], (int) batches * 2);
+            }
+        }
+        record(STAGE_DECODE, parsed - start);
+        record(STAGE_MERGE, merged - parsed);
+        record(STAGE_EVICT, evicted - merged);
+        batches++;
+    }
+
+    // Filters as the in-app fallback would, and counts. Nothing of a row is Android specific
+    // here.
+    private final ScanPipeline.Callback<ScanPipeline.Sighting> pipelineCallback =
+            new ScanPipeline.Callback<ScanPipeline.Sighting>() {
+                @Override
+                public boolean accept(ScanPipeline.Sighting sighting,
+                        AdvertisementParser parser) {
+                    return filterProfile == null
+                            || filterProfile.matches(sighting.getAddress(), parser);
+                }
+
+                @Override
+                public void onFiltered(ScanPipeline.Sighting sighting) {
+                    filtered++;
+                }
+
+                @Override
+                public void onDiscovered(ScanPipeline.Sighting sighting) {
+                    discovered.incrementAndGet();
+                }
+
+                @Override
+                public void render(ScanPipeline.Sighting sighting, DeviceRenderModel model,
+                        DeviceRenderModel previous) {
+                }
+            };
+
+    private void mergeConcurrently() throws InterruptedException {
+        int producers = producerBatches.size();
+        for (int i = 0; i < batch.size(); i++) {
+            ScanPipeline.Sighting device = batch.get(i);
+            // Not the bits the stripes are picked by, so every producer hits every stripe.
+            int producer = (int) (((device.getAddress() * 0x9E3779B97F4A7C15L) >>> 33)
+                    % producers);
+            producerBatches.get(producer).add(device);
+        }
+        ArrayList<Callable<Void>> tasks = new ArrayList<>(producers);
+        for (int i = 0; i < producers; i++) {
+            final ArrayList<ScanPipeline.Sighting> devices = producerBatches.get(i);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    pipeline.merge(devices);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : producerPool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        for (int i = 0; i < producers; i++) {
+            producerBatches.get(i).clear();
+        }
+    }
+
+    private void record(int stage, long nanos) {
+        stageNanos[stage][(int) batches] = nanos;
+        stageTotalNanos[stage] += nanos;
+    }
+
+    /**
+     * Hashes the merged devices, so replays of the same capture can be compared.
+     */
+    public long checksum() {
+        long hash = 17;
+        ArrayList<ScanPipeline.Sighting> devices = merger.snapshot();
+        for (int i = 0; i < devices.size(); i++) {
+            ScanPipeline.Sighting device = devices.get(i);
+            long address = device.getAddress();
+            int count;
+            long intervalNanos;
+            ScanMerger<ScanPipeline.Sighting> stripe = merger.lock(address);
+            try {
+                int slot = stripe.slotOf(address);
+                count = stripe.getTracks().getCount(slot);
+                intervalNanos = stripe.getTracks().getIntervalNanos(slot);
+            } finally {
+                merger.unlock(address);
+            }
+            hash = hash * 31 + address;
+            hash = hash * 31 + count;
+            hash = hash * 31 + device.getTimestampNanos();
+            hash = hash * 31 + intervalNanos;
+            hash = hash * 31 + device.getRenderModel().manufacturer.toString().hashCode();
+        }
+        return hash;
+    }
+
+    public void printReport(long wallNanos) {
+        System.out.printf(Locale.US, "%d records in %d batches, %d filtered out, %.1f ms%n",
+                records, batches, filtered, wallNanos / 1e6);
+        System.out.printf(Locale.US, "%.0f records/s%n", records * 1e9 / Math.max(wallNanos, 1));
+        System.out.printf(Locale.US, "%d records repeated their device's previous one (%.1f%%),"
+                + " not decoded%n", pipeline.getUnchangedCount(),
+                pipeline.getUnchangedCount() * 100.0 / Math.max(records, 1));
+        System.out.printf(Locale.US, "%d devices resident, %d discovered, %d summarized, "
+                        + "%d expired, %d dropped over capacity%n", merger.size(), discovered.get(),
+                merger.getSummaryCount(), merger.getExpiredCount(), merger.getOverflowCount());
+        System.out.printf(Locale.US, "%-8s %12s %12s %12s %12s%n",
+                "stage", "ns/record", "p50 us/batch", "p99 us/batch", "max us/batch");
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            long[] sorted = Arrays.copyOf(stageNanos[stage], (int) batches);
+            Arrays.sort(sorted);
+            System.out.printf(Locale.US, "%-8s %12.0f %12.1f %12.1f %12.1f%n",
+                    STAGE_NAMES[stage],
+                    (double) stageTotalNanos[stage] / Math.max(records, 1),
+                    percentile(sorted, 0.50) / 1e3,
+                    percentile(sorted, 0.99) / 1e3,
+                    percentile(sorted, 1.0) / 1e3);
+        }
+        System.out.printf(Locale.US, "checksum %016x%n", checksum());
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    public static void main(String[] args) throws Exception {
+        int mode = MODE_FAST;
+        float speed = 10;
+        long frameNanos = 16666667;
+        CompanyIdentifiers companyIdentifiers = null;
+        ScanFilterProfile filterProfile = null;
+        int decodeThreads = 1;
+        int producers = 1;
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--mode":
+                    mode = parseMode(args[++i]);
+                    break;
+                case "--speed":
+                    speed = Float.parseFloat(args[++i]);
+                    break;
+                case "--frame-millis":
+                    frameNanos = (long) (Double.parseDouble(args[++i]) * 1000000);
+                    break;
+                case "--decode-threads":
+                    decodeThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "--producers":
+                    producers = Integer.parseInt(args[++i]);
+                    break;
+                case "--companies":
+                    RandomAccessFile table = new RandomAccessFile(args[++i], "r");
+                    companyIdentifiers = CompanyIdentifiers.map(table.getChannel(), 0,
+                            table.length());
+                    table.close();
+                    break;
+                case "--filter":
+                    File profile = new File(args[++i]);
+                    filterProfile = ScanFilterProfile.parse(profile.getName(),
+                            new String(Files.readAllBytes(profile.toPath()),
+                                    Charset.forName("UTF-8")));
+                    break;
+                default:
+                    files.add(new File(args[i]));
+                    break;
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: ScanReplay [--mode realtime|accelerated|fast] [--speed N]"
+                    + " [--frame-millis N] [--decode-threads N] [--producers N]"
+                    + " [--companies file] [--filter file] capture...");
+            System.exit(2);
+        }
+        ScanReplay replay = new ScanReplay(mode, speed, frameNanos, companyIdentifiers,
+                filterProfile, decodeThreads, producers);
+        replay.printReport(replay.replay(files));
+    }
+
+    private static int parseMode(String mode) {
+        switch (mode) {
+            case "realtime":
+                return MODE_REAL_TIME;
+            case "accelerated":
+                return MODE_ACCELERATED;
+            case "fast":
+                return MODE_FAST;
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
+}